@@ -0,0 +1,247 @@
+package io.github.natsusai.utils.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 无锁令牌桶限流器
+ * <p/>
+ * 令牌数量与补充时间被压缩在同一个 long 中（桶被取空的理论时刻，即 GCRA 算法），
+ * 获取许可只需一次 CAS，不需要加锁。
+ * <p/>
+ * 支持突发容量（burst）以及预热（warm-up）：创建后或空闲超过预热时长后，
+ * 每个许可的消耗为稳定值的 {@value #COLD_FACTOR} 倍，并在预热时长内线性降回稳定值。
+ * 是否能获取许可按稳定消耗判断，预热多出的消耗只推迟之后的许可，因此突发容量小于
+ * {@value #COLD_FACTOR} 时也能在预热期间获取许可。
+ *
+ * @author Kurenai
+ * @since 2020-10-20 10:12
+ */
+
+public class RateLimiter {
+
+  private static final double COLD_FACTOR = 3.0;
+
+  private final double     permitsPerSecond;
+  private final long       intervalNanos;
+  private final long       burstNanos;
+  private final long       warmupNanos;
+  /**
+   * 桶被取空的理论时刻（纳秒），大于当前时间时表示已被预支
+   */
+  private final AtomicLong state;
+  private volatile long    warmStart;
+
+  /**
+   * @param permitsPerSecond 每秒许可数
+   */
+  public RateLimiter(double permitsPerSecond) {
+    this(permitsPerSecond, 1);
+  }
+
+  /**
+   * @param permitsPerSecond 每秒许可数
+   * @param burst            突发容量
+   */
+  public RateLimiter(double permitsPerSecond, int burst) {
+    this(permitsPerSecond, burst, 0, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param permitsPerSecond 每秒许可数
+   * @param burst            突发容量
+   * @param warmupPeriod     预热时长，为0则不预热
+   * @param unit             时间单位
+   */
+  public RateLimiter(double permitsPerSecond, int burst, long warmupPeriod, TimeUnit unit) {
+    if (!(permitsPerSecond > 0)) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive: " + permitsPerSecond);
+    }
+    if (burst < 1) {
+      throw new IllegalArgumentException("burst must be positive: " + burst);
+    }
+    if (warmupPeriod < 0) {
+      throw new IllegalArgumentException("warmupPeriod must not be negative: " + warmupPeriod);
+    }
+    long now = System.nanoTime();
+    this.permitsPerSecond = permitsPerSecond;
+    this.intervalNanos    = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+    this.burstNanos       = intervalNanos * burst;
+    this.warmupNanos      = unit.toNanos(warmupPeriod);
+    this.state            = new AtomicLong(now - burstNanos);
+    this.warmStart        = now;
+  }
+
+  /**
+   * 获取每秒许可数
+   *
+   * @return 每秒许可数
+   */
+  public double getPermitsPerSecond() {
+    return permitsPerSecond;
+  }
+
+  /**
+   * 尝试获取一个许可，不阻塞
+   *
+   * @return 成功则返回true
+   */
+  public boolean tryAcquire() {
+    return tryAcquire(1);
+  }
+
+  /**
+   * 尝试获取指定数量的许可，不阻塞
+   * <p/>
+   * 许可数超过突发容量时永远不会成功，此时应使用 {@link #acquire(int, long, TimeUnit)}
+   *
+   * @param permits 许可数
+   * @return 成功则返回true
+   */
+  public boolean tryAcquire(int permits) {
+    return reserve(permits, 0) >= 0;
+  }
+
+  /**
+   * 获取一个许可，必要时阻塞等待
+   */
+  public void acquire() {
+    acquire(1);
+  }
+
+  /**
+   * 获取指定数量的许可，必要时阻塞等待
+   *
+   * @param permits 许可数
+   */
+  public void acquire(int permits) {
+    acquire(permits, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * 在指定时间内获取许可
+   * <p/>
+   * 若预计等待时间超过超时时间则立即返回false，不会占用许可；
+   * 否则预占许可并等待至可用时刻，等待期间的中断会在返回后重新设置
+   *
+   * @param permits 许可数
+   * @param timeout 超时时间
+   * @param unit    时间单位
+   * @return 成功则返回true
+   */
+  public boolean acquire(int permits, long timeout, TimeUnit unit) {
+    long wait = reserve(permits, Math.max(0L, unit.toNanos(timeout)));
+    if (wait < 0) {
+      return false;
+    }
+    sleepUntil(System.nanoTime() + wait);
+    return true;
+  }
+
+  /**
+   * 预占许可
+   *
+   * @param permits      许可数
+   * @param timeoutNanos 最长等待时间
+   * @return 需要等待的纳秒数，预计等待时间超过最长等待时间时不预占并返回-1
+   */
+  long reserve(int permits, long timeoutNanos) {
+    checkPermits(permits);
+    long base = intervalNanos * permits;
+    for (; ; ) {
+      long now     = System.nanoTime();
+      long current = state.get();
+      long start   = Math.max(current, now - burstNanos);
+      long wait    = Math.max(0L, start + base - now);
+      if (wait > timeoutNanos) {
+        return -1;
+      }
+      if (state.compareAndSet(current, start + cost(base, now, current))) {
+        acquired(now, current);
+        return wait;
+      }
+    }
+  }
+
+  /**
+   * 归还预占的许可，预热多出的消耗不归还
+   *
+   * @param permits 许可数
+   */
+  void release(int permits) {
+    state.addAndGet(-intervalNanos * permits);
+  }
+
+  /**
+   * 当前可立即获取的许可数，不考虑预热
+   *
+   * @return 许可数
+   */
+  int availablePermits() {
+    long now = System.nanoTime();
+    return (int) ((now - Math.max(state.get(), now - burstNanos)) / intervalNanos);
+  }
+
+  /**
+   * 预计获取许可需要等待的纳秒数，不预占许可
+   *
+   * @param permits 许可数
+   * @return 纳秒数
+   */
+  long waitNanos(int permits) {
+    long now = System.nanoTime();
+    return Math.max(0L, Math.max(state.get(), now - burstNanos) + intervalNanos * permits - now);
+  }
+
+  /**
+   * 计算许可所消耗的时间额度，预热期间按比例放大
+   */
+  private long cost(long base, long now, long current) {
+    if (warmupNanos == 0) {
+      return base;
+    }
+    long elapsed = idle(now, current) ? 0 : now - warmStart;
+    if (elapsed >= warmupNanos) {
+      return base;
+    }
+    double factor = COLD_FACTOR - (COLD_FACTOR - 1) * elapsed / warmupNanos;
+    return (long) (base * factor);
+  }
+
+  /**
+   * 获取许可成功后，若之前已空闲则从此刻重新开始预热
+   */
+  private void acquired(long now, long current) {
+    if (warmupNanos != 0 && idle(now, current)) {
+      warmStart = now;
+    }
+  }
+
+  /**
+   * 桶已满并空闲超过预热时长
+   */
+  private boolean idle(long now, long current) {
+    return now - current - burstNanos >= warmupNanos;
+  }
+
+  static void sleepUntil(long deadline) {
+    boolean interrupted = false;
+    long    remaining;
+    while ((remaining = deadline - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(remaining);
+      if (Thread.interrupted()) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static void checkPermits(int permits) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be positive: " + permits);
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package io.github.natsusai.utils.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分段令牌桶限流器
+ * <p/>
+ * 将速率与突发容量分配到多个 {@link RateLimiter}，线程优先使用自己所属的分段，
+ * 分段不足时再依次尝试其它分段，以降低大量线程竞争同一个 CAS 的开销。
+ * <p/>
+ * 各分段的突发容量之和等于总突发容量，分段数不超过突发容量；各分段的速率与其突发容量成正比。
+ * 单个分段容纳不下的请求会拆分到多个分段上获取，不足时归还已获取的部分。
+ *
+ * @author Kurenai
+ * @since 2020-10-20 10:12
+ */
+
+public class StripedRateLimiter {
+
+  private final RateLimiter[] stripes;
+  private final int[]         bursts;
+  private final int           burst;
+  private final int           mask;
+
+  /**
+   * @param permitsPerSecond 每秒许可数
+   * @param burst            突发容量
+   */
+  public StripedRateLimiter(double permitsPerSecond, int burst) {
+    this(permitsPerSecond, burst, 0, TimeUnit.NANOSECONDS, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param permitsPerSecond 每秒许可数
+   * @param burst            突发容量
+   * @param warmupPeriod     预热时长，为0则不预热
+   * @param unit             时间单位
+   * @param stripes          分段数，会向上取整为2的幂，超过突发容量时减少为不超过突发容量的2的幂
+   */
+  public StripedRateLimiter(double permitsPerSecond, int burst, long warmupPeriod, TimeUnit unit, int stripes) {
+    if (stripes < 1) {
+      throw new IllegalArgumentException("stripes must be positive: " + stripes);
+    }
+    if (burst < 1) {
+      throw new IllegalArgumentException("burst must be positive: " + burst);
+    }
+    int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+    size = Math.min(size, Integer.highestOneBit(burst));
+    this.stripes = new RateLimiter[size];
+    this.bursts  = new int[size];
+    this.burst   = burst;
+    this.mask    = size - 1;
+    for (int i = 0; i < size; i++) {
+      bursts[i]       = share(burst, i);
+      this.stripes[i] = new RateLimiter(permitsPerSecond * bursts[i] / burst, bursts[i], warmupPeriod, unit);
+    }
+  }
+
+  /**
+   * 尝试获取一个许可，不阻塞
+   *
+   * @return 成功则返回true
+   */
+  public boolean tryAcquire() {
+    return tryAcquire(1);
+  }
+
+  /**
+   * 尝试获取指定数量的许可，不阻塞
+   * <p/>
+   * 许可数超过突发容量时永远不会成功
+   *
+   * @param permits 许可数
+   * @return 成功则返回true
+   */
+  public boolean tryAcquire(int permits) {
+    RateLimiter.checkPermits(permits);
+    if (permits > burst) {
+      return false;
+    }
+    int start = index();
+    for (int i = 0; i < stripes.length; i++) {
+      int k = (start + i) & mask;
+      if (permits <= bursts[k] && stripes[k].tryAcquire(permits)) {
+        return true;
+      }
+    }
+    return permits > 1 && tryAcquireSplit(permits, start);
+  }
+
+  /**
+   * 获取一个许可，必要时阻塞等待
+   */
+  public void acquire() {
+    acquire(1);
+  }
+
+  /**
+   * 获取指定数量的许可，必要时阻塞等待
+   *
+   * @param permits 许可数
+   */
+  public void acquire(int permits) {
+    acquire(permits, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * 在指定时间内获取许可
+   * <p/>
+   * 先尝试所有分段，均不足时单个许可在预计等待时间最短的分段上等待，多个许可拆分到所有分段上等待
+   *
+   * @param permits 许可数
+   * @param timeout 超时时间
+   * @param unit    时间单位
+   * @return 成功则返回true
+   */
+  public boolean acquire(int permits, long timeout, TimeUnit unit) {
+    long wait = reserve(permits, Math.max(0L, unit.toNanos(timeout)));
+    if (wait < 0) {
+      return false;
+    }
+    RateLimiter.sleepUntil(System.nanoTime() + wait);
+    return true;
+  }
+
+  /**
+   * 预占许可
+   *
+   * @param permits      许可数
+   * @param timeoutNanos 最长等待时间
+   * @return 需要等待的纳秒数，预计等待时间超过最长等待时间时不预占并返回-1
+   */
+  long reserve(int permits, long timeoutNanos) {
+    if (tryAcquire(permits)) {
+      return 0;
+    }
+    return permits == 1
+        ? stripes[earliest()].reserve(1, timeoutNanos)
+        : reserveSplit(permits, timeoutNanos);
+  }
+
+  /**
+   * 依次从各分段获取其当前可用的许可，凑不够时归还已获取的部分
+   */
+  private boolean tryAcquireSplit(int permits, int start) {
+    int[] taken     = new int[stripes.length];
+    int   remaining = permits;
+    for (int i = 0; i < stripes.length && remaining > 0; i++) {
+      int k = (start + i) & mask;
+      int n = Math.min(remaining, stripes[k].availablePermits());
+      if (n > 0 && stripes[k].tryAcquire(n)) {
+        taken[k] = n;
+        remaining -= n;
+      }
+    }
+    if (remaining == 0) {
+      return true;
+    }
+    for (int k = 0; k < stripes.length; k++) {
+      if (taken[k] > 0) {
+        stripes[k].release(taken[k]);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * 按突发容量的分配方式把许可拆分到所有分段上预占，许可数不超过突发容量时每段都不超过该段的突发容量
+   *
+   * @return 需要等待的纳秒数，失败返回-1
+   */
+  private long reserveSplit(int permits, long timeoutNanos) {
+    long wait = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      int n = share(permits, i);
+      if (n == 0) {
+        break;
+      }
+      long w = stripes[i].reserve(n, timeoutNanos);
+      if (w < 0) {
+        for (int j = 0; j < i; j++) {
+          stripes[j].release(share(permits, j));
+        }
+        return -1;
+      }
+      wait = Math.max(wait, w);
+    }
+    return wait;
+  }
+
+  private int earliest() {
+    int  start = index();
+    int  best  = start;
+    long min   = Long.MAX_VALUE;
+    for (int i = 0; i < stripes.length; i++) {
+      int  k    = (start + i) & mask;
+      long wait = stripes[k].waitNanos(1);
+      if (wait < min) {
+        min  = wait;
+        best = k;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * 第 i 段分到的数量，余数分给靠前的分段
+   */
+  private int share(int total, int i) {
+    return total / stripes.length + (i < total % stripes.length ? 1 : 0);
+  }
+
+  private int index() {
+    long id = Thread.currentThread().getId();
+    int  h  = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+}
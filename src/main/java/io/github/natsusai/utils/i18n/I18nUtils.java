@@ -4,7 +4,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Locale.LanguageRange;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * i18n工具类
@@ -15,6 +17,18 @@ import java.util.Optional;
 
 public class I18nUtils {
 
+  private static final int CACHE_SIZE = 1024;
+
+  /**
+   * Accept-Language 解析结果缓存，超过容量时整体清空
+   */
+  private static final Map<String, Optional<Locale>> CACHE = new ConcurrentHashMap<>();
+
+  /**
+   * 需要交由 {@link LanguageRange#parse(String)} 处理的情况
+   */
+  static final String FALLBACK = new String("fallback");
+
   /**
    * 获取Locale对象，不在范围内或是出错则返回null
    *
@@ -22,6 +36,172 @@ public class I18nUtils {
    * @return Locale对象
    */
   public static Locale getLocale(String acceptLanguage) {
+    if (acceptLanguage == null) {
+      return null;
+    }
+    Optional<Locale> locale = CACHE.get(acceptLanguage);
+    if (locale == null) {
+      locale = Optional.ofNullable(resolve(acceptLanguage));
+      if (CACHE.size() >= CACHE_SIZE) {
+        CACHE.clear();
+      }
+      CACHE.put(acceptLanguage, locale);
+    }
+    return locale.orElse(null);
+  }
+
+  static Locale resolve(String acceptLanguage) {
+    String range = parseFirstRange(acceptLanguage);
+    if (range == FALLBACK) {
+      return parseByLanguageRange(acceptLanguage);
+    }
+    return range == null ? null : Locale.forLanguageTag(range);
+  }
+
+  /**
+   * 单次遍历解析 Accept-Language，返回权重最高的语言范围（小写）
+   * <p/>
+   * 与 {@link LanguageRange#parse(String)} 保持一致：忽略所有空格，{@code _} 视为 {@code -}，
+   * 任意一个语言范围或权重不合法则返回null，权重相同时取靠前的范围。
+   * 只有第一个范围的权重最高时才能直接得出结果；其它范围权重更高、权重不是三位以内小数
+   * 或出现非常规字符时返回 {@link #FALLBACK}，交由 JDK 处理等价语言等细节。
+   *
+   * @param acceptLanguage Accept-Language
+   * @return 语言范围，不合法返回null
+   */
+  static String parseFirstRange(String acceptLanguage) {
+    final int     length      = acceptLanguage.length();
+    StringBuilder first       = null;
+    int           firstWeight = -1;
+    boolean       sawEmpty    = false;
+    int           i           = 0;
+    while (i <= length) {
+      // 语言范围
+      int     rangeLength = 0;
+      int     subtags     = 0;
+      int     subLength   = 0;
+      boolean star        = false;
+      boolean illFormed   = false;
+      char    c           = 0;
+      for (; i < length; i++) {
+        c = acceptLanguage.charAt(i);
+        if (c == ' ') {
+          continue;
+        }
+        if (c == ',' || c == ';') {
+          break;
+        }
+        if (c >= 'A' && c <= 'Z') {
+          c = (char) (c | 0x20);
+        } else if (c == '_') {
+          c = '-';
+        }
+        if (c == '-') {
+          if (subLength == 0) {
+            illFormed = true;
+          }
+          subtags++;
+          subLength = 0;
+          star      = false;
+        } else if (c == '*') {
+          if (subLength > 0) {
+            illFormed = true;
+          }
+          star = true;
+          subLength++;
+        } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9' && subtags > 0)) {
+          if (star || ++subLength > 8) {
+            illFormed = true;
+          }
+        } else if (c >= '0' && c <= '9' || c == '.' || c == '=') {
+          illFormed = true;
+        } else {
+          return FALLBACK;
+        }
+        if (firstWeight < 0) {
+          if (first == null) {
+            first = new StringBuilder();
+          }
+          first.append(c);
+        }
+        rangeLength++;
+      }
+      boolean hasWeight = i < length && acceptLanguage.charAt(i) == ';';
+
+      // 权重，以千分之一为单位
+      int weight = 1000;
+      if (hasWeight) {
+        i++;
+        i = skipSpaces(acceptLanguage, i);
+        if (i >= length || (acceptLanguage.charAt(i) | 0x20) != 'q') {
+          return null;
+        }
+        i = skipSpaces(acceptLanguage, i + 1);
+        if (i >= length || acceptLanguage.charAt(i) != '=') {
+          return null;
+        }
+        weight = 0;
+        int digits   = 0;
+        int decimals = -1;
+        for (i++; i < length; i++) {
+          c = acceptLanguage.charAt(i);
+          if (c == ' ') {
+            continue;
+          }
+          if (c == ',') {
+            break;
+          }
+          if (c == '.' && decimals < 0) {
+            decimals = 0;
+          } else if (c >= '0' && c <= '9' && decimals < 3 && weight <= 1000) {
+            weight = weight * 10 + (c - '0');
+            digits++;
+            if (decimals >= 0) {
+              decimals++;
+            }
+          } else {
+            return FALLBACK;
+          }
+        }
+        if (digits == 0) {
+          return FALLBACK;
+        }
+        for (int d = decimals < 0 ? 0 : decimals; d < 3; d++) {
+          weight *= 10;
+        }
+        if (weight > 1000) {
+          return null;
+        }
+      }
+
+      if (rangeLength == 0) {
+        if (hasWeight) {
+          return null;
+        }
+        sawEmpty = true;
+      } else {
+        if (sawEmpty || illFormed || subLength == 0) {
+          return null;
+        }
+        if (firstWeight < 0) {
+          firstWeight = weight;
+        } else if (weight > firstWeight) {
+          return FALLBACK;
+        }
+      }
+      i++;
+    }
+    return first == null ? null : first.toString();
+  }
+
+  private static int skipSpaces(String s, int i) {
+    while (i < s.length() && s.charAt(i) == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  static Locale parseByLanguageRange(String acceptLanguage) {
     List<LanguageRange> languageRangeList;
     try {
       acceptLanguage    = Optional.ofNullable(acceptLanguage)
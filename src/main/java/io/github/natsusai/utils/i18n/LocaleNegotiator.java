@@ -0,0 +1,236 @@
+package io.github.natsusai.utils.i18n;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Locale.LanguageRange;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 支持语言协商
+ * <p/>
+ * 创建时根据支持的 Locale 预先建立以语言、文字、地区为键的索引，
+ * 每个请求的语言范围按 语言-文字-地区、语言-文字、语言-地区、语言 的顺序回退查找，
+ * 每一级都是一次哈希查找；同一语言存在多个支持的 Locale 时，较短的键指向先声明的那个。
+ * <p/>
+ * 整个 Accept-Language 按权重从高到低依次匹配，全部不匹配时返回默认 Locale，结果按请求头缓存。
+ * 权重为0的语言范围表示不可接受，按前缀匹配排除支持的 Locale，被排除的 Locale 不会作为结果返回，
+ * 包括默认 Locale。{@link #resolve(Locale)} 的结果按 Locale 缓存。
+ *
+ * @author Kurenai
+ * @since 2020-11-02 14:15
+ */
+
+public class LocaleNegotiator {
+
+  private static final int CACHE_SIZE = 1024;
+
+  private final List<Locale>                  supported;
+  /**
+   * 支持的 Locale 的小写语言标签，用于按前缀匹配权重为0的语言范围
+   */
+  private final List<String>                  tags;
+  private final Locale                        defaultLocale;
+  private final Map<String, Locale>           index         = new HashMap<>();
+  private final Map<String, Optional<Locale>> cache         = new ConcurrentHashMap<>();
+  private final Map<Locale, Optional<Locale>> resolvedCache = new ConcurrentHashMap<>();
+
+  /**
+   * 以第一个支持的 Locale 作为默认 Locale
+   *
+   * @param supported 支持的 Locale，按优先级排列
+   */
+  public LocaleNegotiator(Collection<Locale> supported) {
+    this(supported, supported.isEmpty() ? null : supported.iterator().next());
+  }
+
+  /**
+   * @param supported     支持的 Locale，按优先级排列
+   * @param defaultLocale 默认 Locale，可为null
+   */
+  public LocaleNegotiator(Collection<Locale> supported, Locale defaultLocale) {
+    this.supported     = Collections.unmodifiableList(new ArrayList<>(supported));
+    this.tags          = new ArrayList<>(this.supported.size());
+    this.defaultLocale = defaultLocale;
+    for (Locale locale : this.supported) {
+      tags.add(locale.toLanguageTag().toLowerCase(Locale.ROOT));
+    }
+    // 先登记完整键，保证精确匹配优先于其它 Locale 的回退键
+    for (Locale locale : this.supported) {
+      index.putIfAbsent(key(locale.getLanguage(), locale.getScript(), locale.getCountry()), locale);
+    }
+    for (Locale locale : this.supported) {
+      for (String key : chain(locale)) {
+        index.putIfAbsent(key, locale);
+      }
+    }
+  }
+
+  /**
+   * 获取支持的 Locale
+   *
+   * @return 支持的 Locale
+   */
+  public List<Locale> getSupported() {
+    return supported;
+  }
+
+  /**
+   * 获取默认 Locale
+   *
+   * @return 默认 Locale
+   */
+  public Locale getDefaultLocale() {
+    return defaultLocale;
+  }
+
+  /**
+   * 根据 Accept-Language 协商出最合适的支持 Locale
+   * <p/>
+   * 权重为0的语言范围视为不可接受；{@code *} 匹配默认 Locale，默认 Locale 不可接受时匹配第一个可接受的支持 Locale；
+   * 请求头不合法时返回默认 Locale
+   *
+   * @param acceptLanguage Accept-Language
+   * @return 支持的 Locale，无法匹配则返回默认 Locale；默认 Locale 不可接受时返回第一个可接受的支持 Locale，
+   *     均未匹配且存在 {@code *;q=0} 或支持的 Locale 全部不可接受时返回null
+   */
+  public Locale negotiate(String acceptLanguage) {
+    if (acceptLanguage == null) {
+      return defaultLocale;
+    }
+    Optional<Locale> locale = cache.get(acceptLanguage);
+    if (locale == null) {
+      locale = Optional.ofNullable(doNegotiate(acceptLanguage));
+      if (cache.size() >= CACHE_SIZE) {
+        cache.clear();
+      }
+      cache.put(acceptLanguage, locale);
+    }
+    return locale.orElse(null);
+  }
+
+  /**
+   * 为单个 Locale 匹配支持的 Locale，可配合 {@link I18nUtils#getLocale(String)} 使用
+   *
+   * @param locale Locale
+   * @return 支持的 Locale，无法匹配则返回默认 Locale
+   */
+  public Locale resolve(Locale locale) {
+    if (locale == null) {
+      return defaultLocale;
+    }
+    Optional<Locale> resolved = resolvedCache.get(locale);
+    if (resolved == null) {
+      Locale matched = lookup(locale);
+      resolved = Optional.ofNullable(matched == null ? defaultLocale : matched);
+      if (resolvedCache.size() >= CACHE_SIZE) {
+        resolvedCache.clear();
+      }
+      resolvedCache.put(locale, resolved);
+    }
+    return resolved.orElse(null);
+  }
+
+  /**
+   * 缓存的 Locale 数量
+   *
+   * @return 缓存数量
+   */
+  int getResolvedCacheSize() {
+    return resolvedCache.size();
+  }
+
+  private Locale doNegotiate(String acceptLanguage) {
+    List<LanguageRange> ranges;
+    try {
+      ranges = LanguageRange.parse(acceptLanguage.replace("_", "-"));
+    } catch (Exception e) {
+      return defaultLocale;
+    }
+    // 按权重从高到低排列，权重为0的都在最后
+    List<String> excluded = new ArrayList<>();
+    for (LanguageRange range : ranges) {
+      if (range.getWeight() <= 0) {
+        excluded.add(range.getRange());
+      }
+    }
+    for (LanguageRange range : ranges) {
+      if (range.getWeight() <= 0) {
+        break;
+      }
+      if (range.getRange().equals("*")) {
+        return fallback(excluded);
+      }
+      Locale matched = lookup(Locale.forLanguageTag(range.getRange()));
+      if (matched != null && !isExcluded(matched, excluded)) {
+        return matched;
+      }
+    }
+    return excluded.contains("*") ? null : fallback(excluded);
+  }
+
+  /**
+   * 默认 Locale，不可接受时取第一个可接受的支持 Locale
+   */
+  private Locale fallback(List<String> excluded) {
+    if (excluded.isEmpty() || (defaultLocale != null && !isExcluded(defaultLocale, excluded))) {
+      return defaultLocale;
+    }
+    for (Locale locale : supported) {
+      if (!isExcluded(locale, excluded)) {
+        return locale;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 是否与权重为0的语言范围前缀匹配，{@code *} 只排除未列出的语言，在此不处理
+   */
+  private boolean isExcluded(Locale locale, List<String> excluded) {
+    if (excluded.isEmpty()) {
+      return false;
+    }
+    int    i   = supported.indexOf(locale);
+    String tag = i >= 0 ? tags.get(i) : locale.toLanguageTag().toLowerCase(Locale.ROOT);
+    for (String range : excluded) {
+      if (tag.equals(range) || tag.startsWith(range) && tag.charAt(range.length()) == '-') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Locale lookup(Locale locale) {
+    Locale matched = index.get(key(locale.getLanguage(), locale.getScript(), locale.getCountry()));
+    if (matched != null) {
+      return matched;
+    }
+    for (String key : chain(locale)) {
+      matched = index.get(key);
+      if (matched != null) {
+        return matched;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 回退键：语言-文字、语言-地区、语言
+   */
+  private static String[] chain(Locale locale) {
+    String language = locale.getLanguage();
+    String script   = locale.getScript();
+    String region   = locale.getCountry();
+    return new String[]{key(language, script, ""), key(language, "", region), key(language, "", "")};
+  }
+
+  private static String key(String language, String script, String region) {
+    return language + '-' + script + '-' + region;
+  }
+}
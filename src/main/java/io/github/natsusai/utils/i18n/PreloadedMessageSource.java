@@ -0,0 +1,236 @@
+package io.github.natsusai.utils.i18n;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PropertyResourceBundle;
+import java.util.ResourceBundle;
+import java.util.ResourceBundle.Control;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 预加载的国际化消息
+ * <p/>
+ * 创建时一次性加载所有支持 Locale 的 ResourceBundle（包括父级 bundle 中的消息），
+ * 并把每条消息预先编译为 {@link MessageFormat}，保存在不可变的 Map 中；
+ * 获取消息时只有哈希查找，不再经过 ResourceBundle 的缓存与锁，也不会重复解析消息模板。
+ * <p/>
+ * MessageFormat 不是线程安全的，每条消息持有一个很小的副本池，格式化时借出、用完归还，池中没有空闲副本时临时复制；
+ * 副本随消息表一起释放，不会按线程累积。不含参数的消息在加载时直接格式化为字符串。
+ * {@link #reload()} 在后台构建完整的新消息表后整体替换，读取方总是看到完整的一份消息表。
+ * <p/>
+ * properties 文件以 UTF-8 读取，多个 basename 中存在相同键时以靠前的为准。
+ *
+ * @author Kurenai
+ * @since 2020-11-03 10:20
+ */
+
+public class PreloadedMessageSource {
+
+  private final List<String>     basenames;
+  private final LocaleNegotiator negotiator;
+  private final ClassLoader      classLoader;
+  private final Control          control = new ReloadableControl();
+
+  private volatile Map<Locale, Map<String, Formatter>> messages;
+
+  /**
+   * 以第一个支持的 Locale 作为默认 Locale
+   *
+   * @param supported 支持的 Locale，按优先级排列
+   * @param basenames ResourceBundle 的 basename
+   */
+  public PreloadedMessageSource(Collection<Locale> supported, String... basenames) {
+    this(new LocaleNegotiator(supported), basenames);
+  }
+
+  /**
+   * @param negotiator 语言协商，提供支持的 Locale 与默认 Locale
+   * @param basenames  ResourceBundle 的 basename
+   */
+  public PreloadedMessageSource(LocaleNegotiator negotiator, String... basenames) {
+    this(negotiator, Thread.currentThread().getContextClassLoader(), basenames);
+  }
+
+  /**
+   * @param negotiator  语言协商，提供支持的 Locale 与默认 Locale
+   * @param classLoader 加载 ResourceBundle 的 ClassLoader
+   * @param basenames   ResourceBundle 的 basename
+   */
+  public PreloadedMessageSource(LocaleNegotiator negotiator, ClassLoader classLoader, String... basenames) {
+    if (basenames.length == 0) {
+      throw new IllegalArgumentException("basenames must not be empty");
+    }
+    this.basenames   = Collections.unmodifiableList(Arrays.asList(basenames.clone()));
+    this.negotiator  = negotiator;
+    this.classLoader = classLoader;
+    this.messages    = load();
+  }
+
+  /**
+   * 重新加载所有 ResourceBundle，加载完成后整体替换
+   * <p/>
+   * 加载失败时抛出异常并继续使用原来的消息
+   */
+  public void reload() {
+    messages = load();
+  }
+
+  /**
+   * 根据 Accept-Language 获取消息
+   *
+   * @param code           消息键
+   * @param acceptLanguage Accept-Language
+   * @param args           参数
+   * @return 消息，不存在则返回null
+   */
+  public String getMessageByAcceptLanguage(String code, String acceptLanguage, Object... args) {
+    return getMessage(code, negotiator.negotiate(acceptLanguage), args);
+  }
+
+  /**
+   * 获取消息，Locale 可以是 {@link I18nUtils#getLocale(String)} 的结果，
+   * 不在支持范围内时经 {@link LocaleNegotiator#resolve(Locale)} 匹配
+   *
+   * @param code   消息键
+   * @param locale Locale
+   * @param args   参数
+   * @return 消息，不存在则返回null
+   */
+  public String getMessage(String code, Locale locale, Object... args) {
+    Map<Locale, Map<String, Formatter>> snapshot = messages;
+    Map<String, Formatter>              formats  = locale == null ? null : snapshot.get(locale);
+    if (formats == null) {
+      Locale resolved = negotiator.resolve(locale);
+      formats = resolved == null ? null : snapshot.get(resolved);
+      if (formats == null) {
+        return null;
+      }
+    }
+    Formatter formatter = formats.get(code);
+    return formatter == null ? null : formatter.format(args);
+  }
+
+  /**
+   * 获取 Locale 中所有的消息键
+   *
+   * @param locale Locale
+   * @return 消息键，Locale 不支持时返回默认 Locale 的消息键
+   */
+  public Collection<String> getCodes(Locale locale) {
+    Map<String, Formatter> formats = messages.get(negotiator.resolve(locale));
+    return formats == null ? Collections.emptySet() : formats.keySet();
+  }
+
+  /**
+   * 获取 LocaleNegotiator
+   *
+   * @return LocaleNegotiator
+   */
+  public LocaleNegotiator getNegotiator() {
+    return negotiator;
+  }
+
+  private Map<Locale, Map<String, Formatter>> load() {
+    Map<Locale, Map<String, Formatter>> snapshot = new HashMap<>();
+    for (Locale locale : negotiator.getSupported()) {
+      Map<String, Formatter> formats = new HashMap<>();
+      for (String basename : basenames) {
+        ResourceBundle bundle = ResourceBundle.getBundle(basename, locale, classLoader, control);
+        for (String code : bundle.keySet()) {
+          if (!formats.containsKey(code)) {
+            formats.put(code, new Formatter(bundle.getString(code), locale));
+          }
+        }
+      }
+      snapshot.put(locale, Collections.unmodifiableMap(formats));
+    }
+    return Collections.unmodifiableMap(snapshot);
+  }
+
+  /**
+   * 预编译的消息模板
+   */
+  private static class Formatter {
+
+    /**
+     * 副本池大小，超过的并发格式化临时复制
+     */
+    private static final int POOL_SIZE = 4;
+
+    private final String                              text;
+    private final MessageFormat                       prototype;
+    private final AtomicReferenceArray<MessageFormat> pool;
+
+    private Formatter(String pattern, Locale locale) {
+      MessageFormat messageFormat = new MessageFormat(pattern, locale);
+      if (messageFormat.getFormatsByArgumentIndex().length == 0) {
+        this.text      = messageFormat.format(new Object[0]);
+        this.prototype = null;
+        this.pool      = null;
+      } else {
+        this.text      = null;
+        this.prototype = messageFormat;
+        this.pool      = new AtomicReferenceArray<>(POOL_SIZE);
+      }
+    }
+
+    private String format(Object[] args) {
+      if (prototype == null) {
+        return text;
+      }
+      int           slot   = (int) Thread.currentThread().getId() & (POOL_SIZE - 1);
+      MessageFormat format = pool.getAndSet(slot, null);
+      if (format == null) {
+        format = (MessageFormat) prototype.clone();
+      }
+      String result = format.format(args);
+      pool.lazySet(slot, format);
+      return result;
+    }
+  }
+
+  /**
+   * 不缓存、不回退到系统默认 Locale，properties 以 UTF-8 读取
+   */
+  private static class ReloadableControl extends Control {
+
+    @Override
+    public Locale getFallbackLocale(String baseName, Locale locale) {
+      return null;
+    }
+
+    @Override
+    public long getTimeToLive(String baseName, Locale locale) {
+      return TTL_DONT_CACHE;
+    }
+
+    @Override
+    public ResourceBundle newBundle(String baseName, Locale locale, String format, ClassLoader loader,
+        boolean reload) throws IllegalAccessException, InstantiationException, IOException {
+      if (!"java.properties".equals(format)) {
+        return super.newBundle(baseName, locale, format, loader, true);
+      }
+      URL url = loader.getResource(toResourceName(toBundleName(baseName, locale), "properties"));
+      if (url == null) {
+        return null;
+      }
+      URLConnection connection = url.openConnection();
+      connection.setUseCaches(false);
+      try (InputStream in = connection.getInputStream()) {
+        return new PropertyResourceBundle(new InputStreamReader(in, StandardCharsets.UTF_8));
+      }
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package io.github.natsusai.utils.mq;
+
+import com.rabbitmq.client.Channel;
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ack累加器
+ * <p/>
+ * 记录同一个 Channel 上已完成的 deliveryTag，当从最小未确认 tag 开始的连续前缀累计达到批量大小，
+ * 或距第一条未发送的确认超过最大延迟时，使用一次 {@code basicAck(tag, true)} 确认整个前缀；
+ * 批量确认的 tag 是前缀中最后一条仍需ack的消息，已reject或已逐条确认的 tag 不会被再次确认。
+ * 乱序完成的消息只有在前缀连续后才会被批量确认，超时后仍不连续的部分逐条确认。
+ * <p/>
+ * 已完成的tag按连续区间保存，内存与缺口数量成正比。缺口超过 {@value #MAX_GAPS} 个时，
+ * 最早的缺口视为已在累加器之外确认，前缀直接越过它；若该消息实际仍在处理，
+ * 会被之后的批量确认一并确认，其自身的ack会被忽略。
+ * <p/>
+ * 通过 {@link #register(Channel)} 注册后，{@link RabbitMqUtils} 的重试方法以及
+ * {@link PartitionedDispatcher} 会自动经由累加器执行ack/reject。
+ * 应在 Channel 上第一条消息确认之前注册，且注册后该 Channel 上的所有ack/reject都应经由累加器，
+ * 否则连续前缀会中断，退化为超时后逐条确认。
+ * 批量大小应小于消费者的 prefetch，否则每批都要等到超时才会确认。
+ *
+ * @author Kurenai
+ * @since 2020-10-22 14:05
+ */
+
+public class AckAccumulator implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(AckAccumulator.class);
+
+  private static final int      BATCH_SIZE = 32;
+  private static final long     MAX_DELAY  = 10;
+  private static final TimeUnit TIME_UNIT  = TimeUnit.MILLISECONDS;
+  private static final int      MAX_GAPS   = 1024;
+
+  private static final Map<Channel, AckAccumulator> REGISTRY  = new ConcurrentHashMap<>();
+  private static final ScheduledExecutorService     SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "rabbit-ack-flusher");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final Channel channel;
+  private final int     batchSize;
+  private final long    maxDelayNanos;
+
+  /**
+   * 已完成但尚未进入连续前缀的tag区间（起始 -> 结束，均包含），包括已ack、已reject以及已逐条确认的tag
+   */
+  private final TreeMap<Long, Long> completed = new TreeMap<>();
+  /**
+   * completed 中还需要ack的tag
+   */
+  private final TreeSet<Long>       pending   = new TreeSet<>();
+  /**
+   * 连续前缀之后的第一个tag
+   */
+  private long    next = 1;
+  /**
+   * 连续前缀中最后一条还需要ack的tag
+   */
+  private long    ackTo;
+  /**
+   * 连续前缀中尚未确认的数量
+   */
+  private int     unacked;
+  private boolean scheduled;
+
+  /**
+   * @param channel   Channel
+   * @param batchSize 批量大小
+   * @param maxDelay  最大延迟
+   * @param timeUnit  时间单位
+   */
+  public AckAccumulator(Channel channel, int batchSize, long maxDelay, TimeUnit timeUnit) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+    }
+    this.channel       = channel;
+    this.batchSize     = batchSize;
+    this.maxDelayNanos = timeUnit.toNanos(maxDelay);
+  }
+
+  /**
+   * 为 Channel 注册默认配置的累加器，已注册则返回已有实例
+   *
+   * @param channel Channel
+   * @return 累加器
+   */
+  public static AckAccumulator register(Channel channel) {
+    return register(channel, BATCH_SIZE, MAX_DELAY, TIME_UNIT);
+  }
+
+  /**
+   * 为 Channel 注册累加器，已注册则返回已有实例；Channel 关闭时自动注销
+   *
+   * @param channel   Channel
+   * @param batchSize 批量大小
+   * @param maxDelay  最大延迟
+   * @param timeUnit  时间单位
+   * @return 累加器
+   */
+  public static AckAccumulator register(Channel channel, int batchSize, long maxDelay, TimeUnit timeUnit) {
+    return REGISTRY.computeIfAbsent(channel, c -> {
+      AckAccumulator accumulator = new AckAccumulator(c, batchSize, maxDelay, timeUnit);
+      c.addShutdownListener(cause -> REGISTRY.remove(c, accumulator));
+      return accumulator;
+    });
+  }
+
+  /**
+   * 获取 Channel 已注册的累加器
+   *
+   * @param channel Channel
+   * @return 累加器，未注册则返回null
+   */
+  public static AckAccumulator get(Channel channel) {
+    return REGISTRY.get(channel);
+  }
+
+  /**
+   * 标记消息处理完成，等待批量ack
+   *
+   * @param deliveryTag DeliveryTag
+   * @throws IOException 发送ack失败
+   */
+  public synchronized void ack(long deliveryTag) throws IOException {
+    settle(deliveryTag, true);
+  }
+
+  /**
+   * 立即reject消息，并将其计入连续前缀
+   *
+   * @param deliveryTag DeliveryTag
+   * @param requeue     是否重新入队
+   * @throws IOException 发送reject失败
+   */
+  public synchronized void reject(long deliveryTag, boolean requeue) throws IOException {
+    channel.basicReject(deliveryTag, requeue);
+    settle(deliveryTag, false);
+  }
+
+  /**
+   * 立即确认所有已完成的消息
+   *
+   * @throws IOException 发送ack失败
+   */
+  public synchronized void flush() throws IOException {
+    scheduled = false;
+    ackPrefix();
+    // 不连续的部分逐条确认，仍留在 completed 中以便前缀继续推进
+    for (long deliveryTag : pending) {
+      channel.basicAck(deliveryTag, false);
+    }
+    pending.clear();
+  }
+
+  /**
+   * 确认所有已完成的消息并注销
+   */
+  @Override
+  public void close() throws IOException {
+    REGISTRY.remove(channel, this);
+    if (channel.isOpen()) {
+      flush();
+    }
+  }
+
+  /**
+   * 缺口数量，即连续前缀之后尚未完成的区间数
+   *
+   * @return 缺口数量
+   */
+  synchronized int getGapCount() {
+    return completed.size();
+  }
+
+  private void settle(long deliveryTag, boolean needAck) throws IOException {
+    if (deliveryTag < next || contains(deliveryTag)) {
+      return;
+    }
+    if (needAck) {
+      pending.add(deliveryTag);
+    }
+    insert(deliveryTag);
+    advance();
+    while (completed.size() > MAX_GAPS) {
+      // 最早的缺口视为已在累加器之外确认
+      log.warn("delivery tags {} to {} were not settled through the accumulator, skipping",
+          next, completed.firstKey() - 1);
+      next = completed.firstKey();
+      advance();
+    }
+    if (unacked >= batchSize) {
+      ackPrefix();
+    }
+    if (!scheduled && (unacked > 0 || !pending.isEmpty())) {
+      scheduled = true;
+      SCHEDULER.schedule(this::scheduledFlush, maxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private boolean contains(long deliveryTag) {
+    Map.Entry<Long, Long> range = completed.floorEntry(deliveryTag);
+    return range != null && range.getValue() >= deliveryTag;
+  }
+
+  /**
+   * 将tag并入相邻的区间
+   */
+  private void insert(long deliveryTag) {
+    long                  start = deliveryTag;
+    long                  end   = deliveryTag;
+    Map.Entry<Long, Long> lower = completed.floorEntry(deliveryTag - 1);
+    if (lower != null && lower.getValue() == deliveryTag - 1) {
+      start = lower.getKey();
+    }
+    Long higherEnd = completed.remove(deliveryTag + 1);
+    if (higherEnd != null) {
+      end = higherEnd;
+    }
+    completed.put(start, end);
+  }
+
+  /**
+   * 与连续前缀相接的区间并入前缀
+   */
+  private void advance() {
+    if (completed.isEmpty() || completed.firstKey() != next) {
+      return;
+    }
+    long               end  = completed.pollFirstEntry().getValue();
+    NavigableSet<Long> tags = pending.headSet(end, true);
+    if (!tags.isEmpty()) {
+      ackTo = tags.last();
+      unacked += tags.size();
+      tags.clear();
+    }
+    next = end + 1;
+  }
+
+  private void ackPrefix() throws IOException {
+    if (unacked > 0) {
+      // ackTo 之前的tag都已处理，其中已reject或已确认的不再是未确认状态，不会被重复确认
+      channel.basicAck(ackTo, true);
+      unacked = 0;
+    }
+  }
+
+  private void scheduledFlush() {
+    try {
+      if (channel.isOpen()) {
+        flush();
+      }
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package io.github.natsusai.utils.mq;
+
+import com.rabbitmq.client.Channel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.connection.CorrelationData.Confirm;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+/**
+ * 基于异步发布确认的重新发布
+ * <p/>
+ * 重新发布消息后不等待确认，原消息在收到 broker 的确认后才执行ack；
+ * 确认失败、消息被退回或发送异常时reject原消息并重新入队，保证消息不丢失。
+ * 未确认的消息数量受窗口大小限制，窗口已满时阻塞调用线程；超过确认超时仍未收到确认的按确认失败处理。
+ * <p/>
+ * RabbitTemplate 所使用的 ConnectionFactory 需开启 {@code CORRELATED} 类型的发布确认以及发布退回，
+ * RabbitTemplate 需设置 mandatory，否则创建时抛出 {@link IllegalArgumentException}：
+ * 没有发布确认时确认永远不会到达，没有退回时无法路由的消息也会被确认，原消息会被ack而丢失。
+ *
+ * @author Kurenai
+ * @since 2020-10-23 16:20
+ */
+
+public class ConfirmedRepublisher {
+
+  private static final Logger log = LoggerFactory.getLogger(ConfirmedRepublisher.class);
+
+  private static final int  MAX_IN_FLIGHT   = 256;
+  private static final long CONFIRM_TIMEOUT = 30;
+
+  private static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+    Thread thread = new Thread(r, "rabbit-confirm-timeout");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  static {
+    SCHEDULER.setRemoveOnCancelPolicy(true);
+  }
+
+  private final RabbitTemplate template;
+  private final int            maxInFlight;
+  private final long           timeoutNanos;
+  private final Semaphore      window;
+
+  /**
+   * @param template RabbitTemplate
+   */
+  public ConfirmedRepublisher(RabbitTemplate template) {
+    this(template, MAX_IN_FLIGHT, CONFIRM_TIMEOUT, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @param template    RabbitTemplate
+   * @param maxInFlight 最大未确认消息数量
+   */
+  public ConfirmedRepublisher(RabbitTemplate template, int maxInFlight) {
+    this(template, maxInFlight, CONFIRM_TIMEOUT, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @param template       RabbitTemplate
+   * @param maxInFlight    最大未确认消息数量
+   * @param confirmTimeout 确认超时
+   * @param unit           时间单位
+   */
+  public ConfirmedRepublisher(RabbitTemplate template, int maxInFlight, long confirmTimeout, TimeUnit unit) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+    }
+    if (confirmTimeout < 1) {
+      throw new IllegalArgumentException("confirmTimeout must be positive: " + confirmTimeout);
+    }
+    ConnectionFactory connectionFactory = template.getConnectionFactory();
+    if (connectionFactory == null || !connectionFactory.isPublisherConfirms()) {
+      throw new IllegalArgumentException("connection factory must enable CORRELATED publisher confirms");
+    }
+    if (!connectionFactory.isPublisherReturns()) {
+      throw new IllegalArgumentException("connection factory must enable publisher returns");
+    }
+    if (!Boolean.TRUE.equals(template.isMandatoryFor(new Message(new byte[0], new MessageProperties())))) {
+      throw new IllegalArgumentException("template must be mandatory");
+    }
+    this.template     = template;
+    this.maxInFlight  = maxInFlight;
+    this.timeoutNanos = unit.toNanos(confirmTimeout);
+    this.window       = new Semaphore(maxInFlight);
+  }
+
+  /**
+   * 获取未确认的消息数量
+   *
+   * @return 未确认的消息数量
+   */
+  public int getInFlight() {
+    return maxInFlight - window.availablePermits();
+  }
+
+  /**
+   * 重新发布消息，确认后ack原消息
+   *
+   * @param channel    原消息的 Channel
+   * @param message    Message
+   * @param exchange   交换机名称
+   * @param routingKey 路由键值
+   * @throws InterruptedException 等待窗口时被中断
+   */
+  public void republish(Channel channel, Message message, String exchange, String routingKey)
+      throws InterruptedException {
+    window.acquire();
+    // 未开启监控时不计时
+    final boolean   timed           = RabbitMqUtils.getMetrics() != RabbitMqMetrics.NOOP;
+    final long      start           = timed ? System.nanoTime() : 0L;
+    CorrelationData correlationData = new CorrelationData();
+    correlationData.getFuture().addCallback(
+        confirm -> complete(channel, message, correlationData, confirm, timed, start),
+        e -> {
+          log.error(e.getMessage(), e);
+          complete(channel, message, correlationData, null, timed, start);
+        });
+    // 超时后按未确认处理，之后到达的确认会被忽略
+    ScheduledFuture<?> timeout = SCHEDULER.schedule(
+        () -> correlationData.getFuture().set(new Confirm(false, "confirm timeout")), timeoutNanos,
+        TimeUnit.NANOSECONDS);
+    correlationData.getFuture().addCallback(confirm -> timeout.cancel(false), e -> timeout.cancel(false));
+    try {
+      template.convertAndSend(exchange, routingKey, message, correlationData);
+    } catch (RuntimeException e) {
+      correlationData.getFuture().setException(e);
+    }
+  }
+
+  private void complete(Channel channel, Message message, CorrelationData correlationData, Confirm confirm,
+      boolean timed, long start) {
+    boolean confirmed = confirm != null && confirm.isAck() && correlationData.getReturnedMessage() == null;
+    try {
+      RabbitMqMetrics metrics = RabbitMqUtils.getMetrics();
+      if (timed && metrics != RabbitMqMetrics.NOOP) {
+        MessageProperties properties = message.getMessageProperties();
+        metrics.onRepublish(properties.getConsumerQueue(), properties.getReceivedRoutingKey(),
+            System.nanoTime() - start, confirmed);
+      }
+      if (confirmed) {
+        RabbitMqUtils.ack(channel, message);
+      } else {
+        log.warn("republish not confirmed, requeue delivery {}: {}", RabbitMqUtils.getDeliveryTag(message),
+            confirm == null ? "error" : confirm.getReason());
+        RabbitMqUtils.reject(channel, message, true);
+      }
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+    } finally {
+      window.release();
+    }
+  }
+}
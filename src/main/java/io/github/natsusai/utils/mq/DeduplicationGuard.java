@@ -0,0 +1,351 @@
+package io.github.natsusai.utils.mq;
+
+import com.rabbitmq.client.Channel;
+import io.github.natsusai.utils.io.KryoUtils;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+
+/**
+ * 消息去重
+ * <p/>
+ * 记录已处理完成的消息键，重复投递的消息在反序列化及业务处理之前直接ack并跳过。
+ * <p/>
+ * 记录分为当前与上一代两代，当前代达到容量的一半或存在超过 TTL 的一半时轮换并丢弃上一代，
+ * 因此内存占用不超过容量，每条记录最多保留 TTL。
+ * 只有 TTL 的一半时间内记录的消息少于容量的一半时，每条记录才能保留至少 TTL 的一半；
+ * 否则记录在之后又有容量一半的记录写入后就可能被丢弃，此时重复消息不再能被识别，
+ * 轮换时会输出警告日志，容量应不小于 TTL 内处理消息数量的峰值。
+ * <p/>
+ * 去重窗口很大时可将消息键保存在外部的 {@link KeyStore} 中（例如 Redis），
+ * 内存中每代只保留一个布隆过滤器（误判率 1%，每条记录约 1.2 字节）：
+ * 未命中时直接判定为新消息，不访问外部存储；命中时再由外部存储确认，误判只会多一次查询，不会跳过新消息。
+ * 创建后的第一个 TTL 内布隆过滤器还不完整，所有查询都由外部存储确认。
+ * <p/>
+ * 应在业务处理成功后调用 {@link #markProcessed(Message)}，
+ * 而不是在发送到重试队列时调用，否则重试的消息会被当作重复消息跳过。
+ *
+ * @author Kurenai
+ * @since 2020-10-28 10:25
+ */
+
+public class DeduplicationGuard {
+
+  private static final Logger log = LoggerFactory.getLogger(DeduplicationGuard.class);
+
+  private static final double FPP = 0.01;
+
+  private final Function<Message, ?> keyExtractor;
+  private final int                  maxSize;
+  private final long                 ttlMillis;
+  private final KeyStore             store;
+  private final long                 startedAt;
+  private final int                  bloomBits;
+  private final int                  bloomHashes;
+
+  private volatile Generation current;
+  private volatile Generation previous;
+
+  /**
+   * 以 messageId 作为消息键
+   *
+   * @param maxSize 最大记录数量
+   * @param ttl     记录保留时间
+   * @param unit    时间单位
+   */
+  public DeduplicationGuard(int maxSize, long ttl, TimeUnit unit) {
+    this(message -> message.getMessageProperties().getMessageId(), maxSize, ttl, unit);
+  }
+
+  /**
+   * 消息键保存在内存中
+   *
+   * @param keyExtractor 消息键提取方法，返回null的消息不做去重
+   * @param maxSize      最大记录数量
+   * @param ttl          记录保留时间
+   * @param unit         时间单位
+   */
+  public DeduplicationGuard(Function<Message, ?> keyExtractor, int maxSize, long ttl, TimeUnit unit) {
+    this(keyExtractor, maxSize, ttl, unit, null);
+  }
+
+  /**
+   * 消息键保存在外部存储中，内存中只保留布隆过滤器
+   *
+   * @param keyExtractor 消息键提取方法，返回null的消息不做去重
+   * @param maxSize      去重窗口内的最大记录数量，决定布隆过滤器的大小
+   * @param ttl          记录保留时间
+   * @param unit         时间单位
+   * @param store        消息键的外部存储，为null则保存在内存中
+   */
+  public DeduplicationGuard(Function<Message, ?> keyExtractor, int maxSize, long ttl, TimeUnit unit,
+      KeyStore store) {
+    if (maxSize < 2) {
+      throw new IllegalArgumentException("maxSize must be greater than 1: " + maxSize);
+    }
+    if (ttl < 1) {
+      throw new IllegalArgumentException("ttl must be positive: " + ttl);
+    }
+    this.keyExtractor = keyExtractor;
+    this.maxSize      = maxSize;
+    this.ttlMillis    = unit.toMillis(ttl);
+    this.store        = store;
+    this.startedAt    = System.currentTimeMillis();
+    if (store != null) {
+      // 每代最多 maxSize / 2 条记录
+      int n = maxSize / 2;
+      this.bloomBits   = (int) Math.min(Integer.MAX_VALUE - 63,
+          Math.ceil(-n * Math.log(FPP) / (Math.log(2) * Math.log(2))));
+      this.bloomHashes = Math.max(1, (int) Math.round((double) bloomBits / n * Math.log(2)));
+    } else {
+      this.bloomBits   = 0;
+      this.bloomHashes = 0;
+    }
+    this.current  = newGeneration(startedAt);
+    this.previous = newGeneration(0);
+  }
+
+  /**
+   * 是否为已处理过的消息
+   *
+   * @param message Message
+   * @return 已处理过则返回true
+   */
+  public boolean isDuplicate(Message message) {
+    Object key = keyExtractor.apply(message);
+    if (key == null) {
+      return false;
+    }
+    long       now  = System.currentTimeMillis();
+    Generation cur  = current;
+    Generation prev = previous;
+    if (store == null) {
+      return cur.contains(key, now) || prev.contains(key, now);
+    }
+    long hash = hash(key);
+    if (now - startedAt >= ttlMillis && !cur.mightContain(hash) && !prev.mightContain(hash)) {
+      return false;
+    }
+    return store.contains(key);
+  }
+
+  /**
+   * 若为已处理过的消息则执行ack
+   *
+   * @param channel Channel
+   * @param message Message
+   * @return 已处理过则返回true，调用方应跳过该消息
+   * @throws IOException 发送ack失败
+   */
+  public boolean ackIfDuplicate(Channel channel, Message message) throws IOException {
+    if (!isDuplicate(message)) {
+      return false;
+    }
+    RabbitMqUtils.ack(channel, message);
+    return true;
+  }
+
+  /**
+   * 记录消息已处理完成
+   *
+   * @param message Message
+   */
+  public void markProcessed(Message message) {
+    Object key = keyExtractor.apply(message);
+    if (key == null) {
+      return;
+    }
+    if (store != null) {
+      // 先写入外部存储，布隆过滤器命中时一定能确认
+      store.put(key, ttlMillis, TimeUnit.MILLISECONDS);
+    }
+    long now = System.currentTimeMillis();
+    put(key, now + ttlMillis, now);
+  }
+
+  /**
+   * 将未过期的记录保存到文件，消息键保存在外部存储时不支持
+   *
+   * @param path 文件路径
+   * @throws IOException 写入文件失败
+   */
+  public void save(Path path) throws IOException {
+    checkRecords();
+    long                  now      = System.currentTimeMillis();
+    HashMap<Object, Long> snapshot = new HashMap<>();
+    for (Generation generation : new Generation[]{previous, current}) {
+      for (Entry<Object, Long> entry : generation.records.entrySet()) {
+        if (entry.getValue() > now) {
+          snapshot.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    Files.write(path, KryoUtils.writeToByteArray(snapshot));
+  }
+
+  /**
+   * 从文件加载记录，已过期的记录会被忽略；消息键保存在外部存储时不支持
+   *
+   * @param path 文件路径
+   * @throws IOException 读取文件失败
+   */
+  public void load(Path path) throws IOException {
+    checkRecords();
+    Map<Object, Long> snapshot = KryoUtils.readFromByteArray(Files.readAllBytes(path));
+    long              now      = System.currentTimeMillis();
+    for (Entry<Object, Long> entry : snapshot.entrySet()) {
+      if (entry.getValue() > now) {
+        put(entry.getKey(), entry.getValue(), now);
+      }
+    }
+  }
+
+  private void put(Object key, long expireAt, long now) {
+    Generation generation = current;
+    if (generation.size.get() >= maxSize / 2 || now - generation.createdAt >= ttlMillis / 2) {
+      generation = rotate(generation, now);
+    }
+    generation.put(key, expireAt);
+  }
+
+  private void checkRecords() {
+    if (store != null) {
+      throw new IllegalStateException("keys are kept in the key store");
+    }
+  }
+
+  private synchronized Generation rotate(Generation expected, long now) {
+    if (current == expected) {
+      if (now - expected.createdAt < ttlMillis / 2) {
+        // 按容量提前轮换，被丢弃的记录可能未保留到 TTL 的一半
+        log.warn("deduplication generation full after {}ms, less than half of ttl {}ms, maxSize {} is too small",
+            now - expected.createdAt, ttlMillis, maxSize);
+      }
+      previous = expected;
+      current  = newGeneration(now);
+    }
+    return current;
+  }
+
+  private Generation newGeneration(long createdAt) {
+    return new Generation(createdAt, store == null ? null : new AtomicLongArray((bloomBits + 63) >>> 6));
+  }
+
+  /**
+   * 64 位哈希，字符串按字符计算，避免大窗口下 32 位 hashCode 碰撞抬高误判率
+   */
+  private static long hash(Object key) {
+    long h;
+    if (key instanceof CharSequence) {
+      CharSequence s = (CharSequence) key;
+      h = 0xCBF29CE484222325L;
+      for (int i = 0; i < s.length(); i++) {
+        h = (h ^ s.charAt(i)) * 0x100000001B3L;
+      }
+    } else {
+      h = key.hashCode();
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * 消息键的外部存储，实现需自行按TTL过期
+   */
+  public interface KeyStore {
+
+    /**
+     * 是否存在未过期的消息键
+     *
+     * @param key 消息键
+     * @return 存在则返回true
+     */
+    boolean contains(Object key);
+
+    /**
+     * 保存消息键
+     *
+     * @param key  消息键
+     * @param ttl  保留时间
+     * @param unit 时间单位
+     */
+    void put(Object key, long ttl, TimeUnit unit);
+  }
+
+  private final class Generation {
+
+    private final long                            createdAt;
+    private final AtomicLongArray                 bloom;
+    private final ConcurrentHashMap<Object, Long> records;
+    private final AtomicInteger                   size = new AtomicInteger();
+
+    /**
+     * @param bloom 布隆过滤器，为null时在内存中保存消息键
+     */
+    private Generation(long createdAt, AtomicLongArray bloom) {
+      this.createdAt = createdAt;
+      this.bloom     = bloom;
+      this.records   = bloom == null ? new ConcurrentHashMap<>() : null;
+    }
+
+    private boolean contains(Object key, long now) {
+      Long expireAt = records.get(key);
+      return expireAt != null && expireAt > now;
+    }
+
+    private void put(Object key, long expireAt) {
+      if (bloom != null) {
+        long hash = hash(key);
+        for (int i = 0; i < bloomHashes; i++) {
+          setBit(bit(hash, i));
+        }
+        size.incrementAndGet();
+      } else if (records.put(key, expireAt) == null) {
+        size.incrementAndGet();
+      }
+    }
+
+    private boolean mightContain(long hash) {
+      for (int i = 0; i < bloomHashes; i++) {
+        int bit = bit(hash, i);
+        if ((bloom.get(bit >>> 6) & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * 高低 32 位作为两个独立的哈希，按 h1 + i * h2 生成第 i 个位置
+     */
+    private int bit(long hash, int i) {
+      long h1 = hash & 0xFFFFFFFFL;
+      long h2 = (hash >>> 32) | 1;
+      return (int) ((h1 + i * h2) % bloomBits);
+    }
+
+    private void setBit(int bit) {
+      int  index = bit >>> 6;
+      long mask  = 1L << bit;
+      long word;
+      while (((word = bloom.get(index)) & mask) == 0 && !bloom.compareAndSet(index, word, word | mask)) {
+        // 其它线程修改了同一个字，重试
+      }
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package io.github.natsusai.utils.mq;
+
+import com.rabbitmq.client.Channel;
+import io.github.natsusai.utils.mq.RabbitMqUtils.Task;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+
+/**
+ * 进程内退避重试
+ * <p/>
+ * 处理失败后先在本地按指数退避重新执行处理方法，全部失败后再执行回退操作（reject或发送到死信队列），
+ * 瞬时故障不需要经过 broker。
+ * <p/>
+ * 首次执行在调用线程中进行，之后的重试由共享的定时线程只负责计时，到期后交给执行线程池执行处理方法，
+ * 不会让任何线程休眠等待，阻塞的处理方法也不会推迟其它重试的调度；
+ * 重试期间消息不会ack，仍占用 prefetch 名额，broker 不会因此多投递消息；
+ * Channel 关闭后放弃本地重试，由 broker 重新投递。
+ * <p/>
+ * 重试线程中回退操作或ack抛出异常时，作为最后手段reject并重新入队，避免消息一直未确认而占住 prefetch 名额。
+ *
+ * @author Kurenai
+ * @since 2020-10-27 15:40
+ */
+
+public class LocalRetry {
+
+  private static final Logger log = LoggerFactory.getLogger(LocalRetry.class);
+
+  private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "rabbit-local-retry-timer");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private static final ExecutorService          EXECUTOR  = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "rabbit-local-retry");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final int                      attempts;
+  private final long                     initialBackoffNanos;
+  private final long                     maxBackoffNanos;
+  private final ScheduledExecutorService scheduler;
+  private final Executor                 executor;
+
+  /**
+   * @param attempts       本地重试次数
+   * @param initialBackoff 第一次重试前的等待时间，之后每次翻倍
+   * @param maxBackoff     最大等待时间
+   * @param unit           时间单位
+   */
+  public LocalRetry(int attempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+    this(attempts, initialBackoff, maxBackoff, unit, SCHEDULER);
+  }
+
+  /**
+   * @param attempts       本地重试次数
+   * @param initialBackoff 第一次重试前的等待时间，之后每次翻倍
+   * @param maxBackoff     最大等待时间
+   * @param unit           时间单位
+   * @param scheduler      重试计时的定时线程池
+   */
+  public LocalRetry(int attempts, long initialBackoff, long maxBackoff, TimeUnit unit,
+      ScheduledExecutorService scheduler) {
+    this(attempts, initialBackoff, maxBackoff, unit, scheduler, EXECUTOR);
+  }
+
+  /**
+   * @param attempts       本地重试次数
+   * @param initialBackoff 第一次重试前的等待时间，必须大于0，之后每次翻倍
+   * @param maxBackoff     最大等待时间
+   * @param unit           时间单位
+   * @param scheduler      重试计时的定时线程池
+   * @param executor       执行重试的线程池
+   */
+  public LocalRetry(int attempts, long initialBackoff, long maxBackoff, TimeUnit unit,
+      ScheduledExecutorService scheduler, Executor executor) {
+    if (attempts < 0) {
+      throw new IllegalArgumentException("attempts must not be negative: " + attempts);
+    }
+    if (initialBackoff < 1 || maxBackoff < initialBackoff) {
+      throw new IllegalArgumentException("invalid backoff: " + initialBackoff + " - " + maxBackoff);
+    }
+    this.attempts            = attempts;
+    this.initialBackoffNanos = Math.max(1L, unit.toNanos(initialBackoff));
+    this.maxBackoffNanos     = unit.toNanos(maxBackoff);
+    this.scheduler           = scheduler;
+    this.executor            = executor;
+  }
+
+  /**
+   * 执行处理方法，成功则ack，本地重试全部失败后执行回退操作
+   *
+   * @param channel  Channel
+   * @param message  Message
+   * @param handler  处理方法
+   * @param fallback 回退操作，负责消息的ack/reject
+   */
+  public void execute(Channel channel, Message message, Task handler, Task fallback) throws Exception {
+    if (!attempt(channel, message, handler)) {
+      next(channel, message, handler, fallback, 0);
+    }
+  }
+
+  private boolean attempt(Channel channel, Message message, Task handler) throws Exception {
+    try {
+      RabbitMqUtils.handle(message, handler);
+    } catch (Exception e) {
+      log.debug("local attempt failed: {}", e.getMessage());
+      return false;
+    }
+    RabbitMqUtils.ack(channel, message);
+    return true;
+  }
+
+  private void next(Channel channel, Message message, Task handler, Task fallback, int retried) throws Exception {
+    if (retried >= attempts) {
+      fallback.execute();
+      return;
+    }
+    scheduler.schedule(() -> {
+      try {
+        executor.execute(() -> retry(channel, message, handler, fallback, retried));
+      } catch (Exception e) {
+        log.error(e.getMessage(), e);
+        requeue(channel, message);
+      }
+    }, backoff(retried), TimeUnit.NANOSECONDS);
+  }
+
+  private void retry(Channel channel, Message message, Task handler, Task fallback, int retried) {
+    if (!channel.isOpen()) {
+      log.debug("channel closed, give up local retry of delivery {}", RabbitMqUtils.getDeliveryTag(message));
+      return;
+    }
+    try {
+      if (!attempt(channel, message, handler)) {
+        next(channel, message, handler, fallback, retried + 1);
+      }
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+      requeue(channel, message);
+    }
+  }
+
+  /**
+   * 最后手段：reject并重新入队，释放 prefetch 名额
+   */
+  private static void requeue(Channel channel, Message message) {
+    if (!channel.isOpen()) {
+      return;
+    }
+    try {
+      RabbitMqUtils.reject(channel, message, true);
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+    }
+  }
+
+  private long backoff(int retried) {
+    if (retried >= Long.numberOfLeadingZeros(initialBackoffNanos) - 1) {
+      return maxBackoffNanos;
+    }
+    return Math.min(initialBackoffNanos << retried, maxBackoffNanos);
+  }
+}
@@ -0,0 +1,236 @@
+package io.github.natsusai.utils.mq;
+
+import com.rabbitmq.client.Channel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+
+/**
+ * 按键分区的有序并行消费分发器
+ * <p/>
+ * 根据消息键的哈希值将消息分配到固定数量的单线程通道（lane）中执行，
+ * 同一个键的消息始终在同一个通道内按投递顺序处理，不同键之间并行处理。
+ * <p/>
+ * 处理抛出异常时在通道内按指数退避重试，重试期间同一通道的后续消息等待，保证同一个键的顺序；
+ * 重试次数用尽后交给失败处理方法，默认reject且不重新入队（队列配置了死信交换机时进入死信队列），
+ * 不会把消息放回原队列造成乱序或反复投递；可传入使用 {@link RabbitMqUtils} 重试方法的失败处理方法。
+ * <p/>
+ * 监听容器必须使用 {@code AcknowledgeMode.MANUAL}，AUTO 模式下容器在监听方法返回后也会ack，
+ * 对同一个 deliveryTag 的第二次ack会导致 Channel 被关闭。
+ * 通道队列不设上限，积压数量由消费者的 prefetch 控制。
+ *
+ * @author Kurenai
+ * @since 2020-10-21 09:30
+ */
+
+public class PartitionedDispatcher implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(PartitionedDispatcher.class);
+
+  private static final int  MAX_ATTEMPTS = 3;
+  private static final long BACKOFF      = 100;
+
+  private final ExecutorService[]    lanes;
+  private final Function<Message, ?> keyExtractor;
+  private final boolean              ack;
+  private final int                  maxAttempts;
+  private final long                 backoffMillis;
+  private final Handler              failureHandler;
+  private final AtomicInteger        inFlight = new AtomicInteger();
+
+  /**
+   * 处理完成后由分发器执行ack
+   *
+   * @param lanes        通道数量
+   * @param keyExtractor 消息键提取方法
+   */
+  public PartitionedDispatcher(int lanes, Function<Message, ?> keyExtractor) {
+    this(lanes, keyExtractor, true);
+  }
+
+  /**
+   * @param lanes        通道数量
+   * @param keyExtractor 消息键提取方法
+   * @param ack          处理完成后是否由分发器执行ack，
+   *                     为false时由处理方法自行ack（如使用 {@link RabbitMqUtils} 的重试方法并传入ack=true）
+   */
+  public PartitionedDispatcher(int lanes, Function<Message, ?> keyExtractor, boolean ack) {
+    this(lanes, keyExtractor, ack, MAX_ATTEMPTS, BACKOFF, TimeUnit.MILLISECONDS,
+        (channel, message) -> RabbitMqUtils.reject(channel, message, false));
+  }
+
+  /**
+   * @param lanes          通道数量
+   * @param keyExtractor   消息键提取方法
+   * @param ack            处理完成后是否由分发器执行ack
+   * @param maxAttempts    处理方法的最大执行次数（包括第一次）
+   * @param backoff        第一次重试前的等待时间，之后每次翻倍
+   * @param unit           时间单位
+   * @param failureHandler 重试次数用尽后的失败处理方法，负责ack或reject消息，
+   *                       如 {@code (c, m) -> RabbitMqUtils.retry(template, c, m, dlx)}
+   */
+  public PartitionedDispatcher(int lanes, Function<Message, ?> keyExtractor, boolean ack, int maxAttempts,
+      long backoff, TimeUnit unit, Handler failureHandler) {
+    if (lanes < 1) {
+      throw new IllegalArgumentException("lanes must be positive: " + lanes);
+    }
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+    }
+    if (backoff < 0) {
+      throw new IllegalArgumentException("backoff must not be negative: " + backoff);
+    }
+    this.lanes          = new ExecutorService[lanes];
+    this.keyExtractor   = keyExtractor;
+    this.ack            = ack;
+    this.maxAttempts    = maxAttempts;
+    this.backoffMillis  = unit.toMillis(backoff);
+    this.failureHandler = failureHandler;
+    for (int i = 0; i < lanes; i++) {
+      final String name = "rabbit-lane-" + i;
+      this.lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  /**
+   * 以消息头作为消息键
+   *
+   * @param header 消息头名称
+   * @return 消息键提取方法
+   */
+  public static Function<Message, Object> header(String header) {
+    return message -> message.getMessageProperties().getHeaders().get(header);
+  }
+
+  /**
+   * 分发消息
+   * <p/>
+   * 分发器负责ack时，处理成功后执行 {@code basicAck(deliveryTag, false)}，
+   * 重试次数用尽后由失败处理方法处理；
+   * 通道之间完成顺序不确定，因此只做单条ack，不会误确认仍在处理中的消息；
+   * Channel 注册了 {@link AckAccumulator} 时则由累加器按连续前缀批量确认
+   *
+   * @param channel Channel
+   * @param message Message
+   * @param handler 处理方法
+   */
+  public void dispatch(Channel channel, Message message, Handler handler) {
+    Object key  = keyExtractor.apply(message);
+    int    hash = key == null ? Long.hashCode(RabbitMqUtils.getDeliveryTag(message)) : key.hashCode();
+    hash ^= hash >>> 16;
+    inFlight.incrementAndGet();
+    try {
+      lanes[Math.floorMod(hash, lanes.length)].execute(() -> process(channel, message, handler));
+    } catch (RejectedExecutionException e) {
+      inFlight.decrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * 获取已分发但未处理完成的消息数量
+   *
+   * @return 处理中的消息数量
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * 停止接收新消息，并等待已分发的消息处理完成
+   *
+   * @param timeout 超时时间
+   * @param unit    时间单位
+   * @return 全部处理完成则返回true
+   * @throws InterruptedException 等待被中断
+   */
+  public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    for (ExecutorService lane : lanes) {
+      lane.shutdown();
+    }
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (ExecutorService lane : lanes) {
+      if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+    for (ExecutorService lane : lanes) {
+      lane.shutdownNow();
+    }
+  }
+
+  private void process(Channel channel, Message message, Handler handler) {
+    try {
+      if (handleWithRetry(channel, message, handler)) {
+        if (ack) {
+          RabbitMqUtils.ack(channel, message);
+        }
+      } else {
+        failureHandler.handle(channel, message);
+      }
+    } catch (InterruptedException e) {
+      // 分发器关闭，放回队列等待重新投递
+      Thread.currentThread().interrupt();
+      requeue(channel, message);
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+      requeue(channel, message);
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * 在通道内执行并重试处理方法，重试期间阻塞该通道
+   *
+   * @return 是否处理成功
+   */
+  private boolean handleWithRetry(Channel channel, Message message, Handler handler) throws InterruptedException {
+    long backoff = backoffMillis;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        RabbitMqUtils.handle(message, () -> handler.handle(channel, message));
+        return true;
+      } catch (Exception e) {
+        log.error(e.getMessage(), e);
+        if (attempt >= maxAttempts || !channel.isOpen()) {
+          return false;
+        }
+      }
+      TimeUnit.MILLISECONDS.sleep(backoff);
+      backoff = Math.min(backoff * 2, TimeUnit.MINUTES.toMillis(1));
+    }
+  }
+
+  private static void requeue(Channel channel, Message message) {
+    try {
+      if (channel.isOpen()) {
+        RabbitMqUtils.reject(channel, message, true);
+      }
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+    }
+  }
+
+  @FunctionalInterface
+  public interface Handler {
+
+    void handle(Channel channel, Message message) throws Exception;
+  }
+}
@@ -0,0 +1,78 @@
+package io.github.natsusai.utils.mq;
+
+/**
+ * 重试与ack路径的监控接口
+ * <p/>
+ * 通过 {@link RabbitMqUtils#setMetrics(RabbitMqMetrics)} 注册，可按需覆盖方法接入 Micrometer 等监控系统。
+ * 所有方法都以消息的消费队列与接收路由键值作为标签，在消费线程或确认回调线程中同步调用，实现应尽量轻量。
+ * 未注册时使用 {@link #NOOP}，不会计时也不会产生额外开销。
+ *
+ * @author Kurenai
+ * @since 2020-10-30 10:40
+ */
+
+public interface RabbitMqMetrics {
+
+  RabbitMqMetrics NOOP = new RabbitMqMetrics() {
+  };
+
+  /**
+   * 执行了ack
+   *
+   * @param queue      消费队列
+   * @param routingKey 接收路由键值
+   */
+  default void onAck(String queue, String routingKey) {
+  }
+
+  /**
+   * 执行了reject
+   *
+   * @param queue      消费队列
+   * @param routingKey 接收路由键值
+   * @param requeue    是否重新入队
+   */
+  default void onReject(String queue, String routingKey, boolean requeue) {
+  }
+
+  /**
+   * 重新发布到了重试/死信交换机
+   *
+   * @param queue      消费队列
+   * @param routingKey 接收路由键值
+   * @param nanos      发布耗时，异步确认时为发布到收到确认的耗时
+   * @param success    是否成功，异步确认时为是否被确认
+   */
+  default void onRepublish(String queue, String routingKey, long nanos, boolean success) {
+  }
+
+  /**
+   * 超过重试次数，执行了放弃任务
+   *
+   * @param queue      消费队列
+   * @param routingKey 接收路由键值
+   */
+  default void onGiveUp(String queue, String routingKey) {
+  }
+
+  /**
+   * 进入重试判断时消息的 x-death 计数，可用于统计重试深度分布
+   *
+   * @param queue      消费队列
+   * @param routingKey 接收路由键值
+   * @param count      x-death 计数
+   */
+  default void onXDeath(String queue, String routingKey, long count) {
+  }
+
+  /**
+   * 执行了处理方法
+   *
+   * @param queue      消费队列
+   * @param routingKey 接收路由键值
+   * @param nanos      处理耗时
+   * @param success    是否处理成功
+   */
+  default void onHandle(String queue, String routingKey, long nanos, boolean success) {
+  }
+}
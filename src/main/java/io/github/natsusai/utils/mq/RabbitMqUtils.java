@@ -1,10 +1,14 @@
 package io.github.natsusai.utils.mq;
 
 import com.rabbitmq.client.Channel;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 
 /**
@@ -21,6 +25,8 @@ public class RabbitMqUtils {
 
   private static final int RETRY_TIMES = 3;
 
+  private static volatile RabbitMqMetrics metrics = RabbitMqMetrics.NOOP;
+
   private final int            retryTimes;
   private final RabbitTemplate template;
   private final Channel        channel;
@@ -116,6 +122,29 @@ public class RabbitMqUtils {
     simpleRetryOrExec(channel, message, ack, task);
   }
 
+  /**
+   * 本地重试后简单重试
+   * <p/>
+   * 先执行处理方法并在本地重试，全部失败后再进行简单重试，并做ack
+   * @param localRetry 本地重试
+   * @param handler 处理方法
+   */
+  public void simpleRetry(LocalRetry localRetry, Task handler) throws Exception {
+    simpleRetry(localRetry, channel, message, handler);
+  }
+
+  /**
+   * 本地重试后简单重试，否则执行传入任务
+   * <p/>
+   * 先执行处理方法并在本地重试，全部失败后再进行简单重试；若简单重试失败则执行传入的任务，并执行ack
+   * @param localRetry 本地重试
+   * @param handler 处理方法
+   * @param task 被执行任务
+   */
+  public void simpleRetryOrExec(LocalRetry localRetry, Task handler, Task task) throws Exception {
+    simpleRetryOrExec(localRetry, channel, message, handler, task);
+  }
+
   /**
    * 重试
    * @param dlx 死信队列名称
@@ -170,7 +199,44 @@ public class RabbitMqUtils {
    * @param task 被执行任务
    */
   public void retryOrExec(String dlx, String routingKey, boolean ack, Task task) throws Exception {
-    doRetry(template, channel, message, dlx, routingKey, RETRY_TIMES, ack, task);
+    doRetry(template, channel, message, dlx, routingKey, retryTimes, ack, task);
+  }
+
+  /**
+   * 分级延迟重试
+   * @param policy 分级延迟重试策略
+   */
+  public void retry(TieredRetryPolicy policy) throws Exception {
+    retryOrExec(policy, true, () -> {});
+  }
+
+  /**
+   * 分级延迟重试，否则执行传入任务
+   * @param policy 分级延迟重试策略
+   * @param ack 是否执行ack
+   * @param task 被执行任务
+   */
+  public void retryOrExec(TieredRetryPolicy policy, boolean ack, Task task) throws Exception {
+    doTieredRetry(template, channel, message, policy, ack, task);
+  }
+
+  /**
+   * 重试，重新发布确认后才执行ack
+   * @param republisher ConfirmedRepublisher
+   * @param dlx 死信队列名称
+   */
+  public void confirmRetry(ConfirmedRepublisher republisher, String dlx) throws Exception {
+    confirmRetryOrExec(republisher, dlx, () -> {});
+  }
+
+  /**
+   * 重试，否则执行传入任务；重新发布确认后才执行ack
+   * @param republisher ConfirmedRepublisher
+   * @param dlx 死信队列名称
+   * @param task 被执行任务
+   */
+  public void confirmRetryOrExec(ConfirmedRepublisher republisher, String dlx, Task task) throws Exception {
+    doConfirmRetry(republisher, channel, message, dlx, getReceivedRoutingKey(), retryTimes, task);
   }
 
   /**
@@ -186,6 +252,30 @@ public class RabbitMqUtils {
         .orElse(0L);
   }
 
+  /**
+   * 获取X-Death 总计数
+   * <p/>
+   * 消息经过多个队列死信时，x-death 中每个队列各有一条记录，此处返回所有记录计数之和；
+   * 分级延迟重试的次数应使用 {@link TieredRetryPolicy#getAttempts(Message)}
+   *
+   * @param message Message
+   * @return X-Death 总计数
+   */
+  public static long getXDeathTotalCount(Message message) {
+    List<Map<String, ?>> xDeath = message.getMessageProperties().getXDeathHeader();
+    if (xDeath == null) {
+      return 0L;
+    }
+    long count = 0L;
+    for (Map<String, ?> death : xDeath) {
+      Object value = death.get("count");
+      if (value instanceof Number) {
+        count += ((Number) value).longValue();
+      }
+    }
+    return count;
+  }
+
   /**
    * 获取DeliveryTag
    * @return DeliveryTag
@@ -250,6 +340,35 @@ public class RabbitMqUtils {
     doSimpleRetry(channel, message, ack, task);
   }
 
+  /**
+   * 本地重试后简单重试
+   * <p/>
+   * 先执行处理方法并在本地重试，全部失败后再进行简单重试，并做ack
+   * @param localRetry 本地重试
+   * @param channel Channel
+   * @param message Message
+   * @param handler 处理方法
+   */
+  public static void simpleRetry(LocalRetry localRetry, Channel channel, Message message, Task handler)
+      throws Exception {
+    simpleRetryOrExec(localRetry, channel, message, handler, () -> {});
+  }
+
+  /**
+   * 本地重试后简单重试，否则执行传入任务
+   * <p/>
+   * 先执行处理方法并在本地重试，全部失败后再进行简单重试；若简单重试失败则执行传入的任务，并执行ack
+   * @param localRetry 本地重试
+   * @param channel Channel
+   * @param message Message
+   * @param handler 处理方法
+   * @param task 执行任务
+   */
+  public static void simpleRetryOrExec(
+      LocalRetry localRetry, Channel channel, Message message, Task handler, Task task) throws Exception {
+    localRetry.execute(channel, message, handler, () -> doSimpleRetry(channel, message, true, task));
+  }
+
   /**
    * 重试，失败会执行ack
    * @param template RabbitTemplate
@@ -286,7 +405,23 @@ public class RabbitMqUtils {
   public static void retry(RabbitTemplate template, Channel channel, Message message, String dlx, String routingKey,
       boolean ack)
       throws Exception {
-    doRetry(template, channel, message, dlx, routingKey, RETRY_TIMES, ack, () -> {});
+    retry(template, channel, message, dlx, routingKey, RETRY_TIMES, ack);
+  }
+
+  /**
+   * 重试
+   * @param template RabbitTemplate
+   * @param channel Channel
+   * @param message Message
+   * @param dlx 死信队列名称
+   * @param routingKey 路由键值
+   * @param retryTimes 重试次数
+   * @param ack 是否执行ack
+   */
+  public static void retry(RabbitTemplate template, Channel channel, Message message, String dlx, String routingKey,
+      int retryTimes, boolean ack)
+      throws Exception {
+    doRetry(template, channel, message, dlx, routingKey, retryTimes, ack, () -> {});
   }
 
   /**
@@ -330,7 +465,125 @@ public class RabbitMqUtils {
   public static void retryOrExec(
       RabbitTemplate template, Channel channel, Message message, String dlx, String routingKey, boolean ack, Task task)
       throws Exception {
-    doRetry(template, channel, message, dlx, routingKey, RETRY_TIMES, ack, task);
+    retryOrExec(template, channel, message, dlx, routingKey, RETRY_TIMES, ack, task);
+  }
+
+  /**
+   * 重试，否则执行传入任务
+   * @param template RabbitTemplate
+   * @param channel Channel
+   * @param message Message
+   * @param dlx 死信队列名称
+   * @param routingKey 路由键值
+   * @param retryTimes 重试次数
+   * @param ack 是否执行ack
+   * @param task 被执行任务
+   */
+  public static void retryOrExec(
+      RabbitTemplate template, Channel channel, Message message, String dlx, String routingKey, int retryTimes,
+      boolean ack, Task task) throws Exception {
+    doRetry(template, channel, message, dlx, routingKey, retryTimes, ack, task);
+  }
+
+  /**
+   * 分级延迟重试，失败会执行ack
+   * @param template RabbitTemplate
+   * @param channel Channel
+   * @param message Message
+   * @param policy 分级延迟重试策略
+   */
+  public static void retry(RabbitTemplate template, Channel channel, Message message, TieredRetryPolicy policy)
+      throws Exception {
+    retryOrExec(template, channel, message, policy, true, () -> {});
+  }
+
+  /**
+   * 分级延迟重试，否则执行传入任务
+   * <p/>
+   * 按消息在策略各级延迟队列中的 x-death 计数选择延迟队列，超过策略的最大重试次数后执行传入任务
+   * @param template RabbitTemplate
+   * @param channel Channel
+   * @param message Message
+   * @param policy 分级延迟重试策略
+   * @param ack 是否执行ack
+   * @param task 被执行任务
+   */
+  public static void retryOrExec(
+      RabbitTemplate template, Channel channel, Message message, TieredRetryPolicy policy, boolean ack, Task task)
+      throws Exception {
+    doTieredRetry(template, channel, message, policy, ack, task);
+  }
+
+  /**
+   * 重试，重新发布确认后才执行ack
+   * @param republisher ConfirmedRepublisher
+   * @param channel Channel
+   * @param message Message
+   * @param dlx 死信队列名称
+   */
+  public static void confirmRetry(ConfirmedRepublisher republisher, Channel channel, Message message, String dlx)
+      throws Exception {
+    confirmRetry(republisher, channel, message, dlx, message.getMessageProperties().getReceivedRoutingKey());
+  }
+
+  /**
+   * 重试，重新发布确认后才执行ack
+   * @param republisher ConfirmedRepublisher
+   * @param channel Channel
+   * @param message Message
+   * @param dlx 死信队列名称
+   * @param routingKey 路由键值
+   */
+  public static void confirmRetry(
+      ConfirmedRepublisher republisher, Channel channel, Message message, String dlx, String routingKey)
+      throws Exception {
+    confirmRetry(republisher, channel, message, dlx, routingKey, RETRY_TIMES);
+  }
+
+  /**
+   * 重试，重新发布确认后才执行ack
+   * @param republisher ConfirmedRepublisher
+   * @param channel Channel
+   * @param message Message
+   * @param dlx 死信队列名称
+   * @param routingKey 路由键值
+   * @param retryTimes 重试次数
+   */
+  public static void confirmRetry(
+      ConfirmedRepublisher republisher, Channel channel, Message message, String dlx, String routingKey,
+      int retryTimes) throws Exception {
+    doConfirmRetry(republisher, channel, message, dlx, routingKey, retryTimes, () -> {});
+  }
+
+  /**
+   * 重试，否则执行传入任务；重新发布确认后才执行ack
+   * @param republisher ConfirmedRepublisher
+   * @param channel Channel
+   * @param message Message
+   * @param dlx 死信队列名称
+   * @param routingKey 路由键值
+   * @param task 被执行任务
+   */
+  public static void confirmRetryOrExec(
+      ConfirmedRepublisher republisher, Channel channel, Message message, String dlx, String routingKey, Task task)
+      throws Exception {
+    confirmRetryOrExec(republisher, channel, message, dlx, routingKey, RETRY_TIMES, task);
+  }
+
+  /**
+   * 重试，否则执行传入任务；重新发布确认后才执行ack
+   * @param republisher ConfirmedRepublisher
+   * @param channel Channel
+   * @param message Message
+   * @param dlx 死信队列名称
+   * @param routingKey 路由键值
+   * @param retryTimes 重试次数
+   * @param task 被执行任务
+   */
+  public static void confirmRetryOrExec(
+      ConfirmedRepublisher republisher, Channel channel, Message message, String dlx, String routingKey,
+      int retryTimes, Task task) throws Exception {
+    doConfirmRetry(republisher, channel, message, dlx, routingKey, retryTimes, task);
   }
 
   private String getReceivedRoutingKey() {
@@ -343,26 +596,178 @@ public class RabbitMqUtils {
     final long    xDeathCount = getXDeathCount(message);
     final boolean canRetry    = xDeathCount < retryTimes;
     log.debug("retry times: {}", xDeathCount);
+    onXDeath(message, xDeathCount);
     if (canRetry) {
-      template.convertAndSend(dlx, routingKey, message);
+      republish(template, message, dlx, routingKey);
+    } else {
+      giveUp(message, task);
+    }
+    if (ack) {
+      ack(channel, message);
+    }
+  }
+
+  private static void doTieredRetry(
+      RabbitTemplate template, Channel channel, Message message, TieredRetryPolicy policy, boolean ack, Task task)
+      throws Exception {
+    final long attempts = policy.getAttempts(message);
+    log.debug("retry times: {}", attempts);
+    onXDeath(message, attempts);
+    if (policy.canRetry(attempts)) {
+      message.getMessageProperties().setExpiration(String.valueOf(policy.getExpiration(attempts)));
+      republish(template, message, policy.getExchange(), policy.getRoutingKey(attempts));
     } else {
-      task.execute();
+      giveUp(message, task);
     }
     if (ack) {
-      channel.basicAck(getDeliveryTag(message), false);
+      ack(channel, message);
+    }
+  }
+
+  private static void doConfirmRetry(
+      ConfirmedRepublisher republisher, Channel channel, Message message, String dlx, String routingKey,
+      int retryTimes, Task task) throws Exception {
+    final long xDeathCount = getXDeathCount(message);
+    log.debug("retry times: {}", xDeathCount);
+    onXDeath(message, xDeathCount);
+    if (xDeathCount < retryTimes) {
+      republisher.republish(channel, message, dlx, routingKey);
+    } else {
+      giveUp(message, task);
+      ack(channel, message);
     }
   }
 
   private static void doSimpleRetry(Channel channel, Message message, boolean ack, Task task)
       throws Exception {
-    long deliveryTag = getDeliveryTag(message);
     if (getReDeliveryTag(message)) {
-      task.execute();
+      giveUp(message, task);
       if (ack) {
-        channel.basicAck(deliveryTag, false);
+        ack(channel, message);
       }
     } else {
-      channel.basicReject(deliveryTag, true);
+      reject(channel, message, true);
+    }
+  }
+
+  /**
+   * 设置监控，为null则关闭监控
+   *
+   * @param metrics RabbitMqMetrics
+   */
+  public static void setMetrics(RabbitMqMetrics metrics) {
+    RabbitMqUtils.metrics = metrics == null ? RabbitMqMetrics.NOOP : metrics;
+  }
+
+  /**
+   * 获取监控
+   *
+   * @return RabbitMqMetrics，未设置则返回 {@link RabbitMqMetrics#NOOP}
+   */
+  public static RabbitMqMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * 执行ack，Channel 注册了 {@link AckAccumulator} 时经由累加器批量确认
+   *
+   * @param channel Channel
+   * @param message Message
+   */
+  static void ack(Channel channel, Message message) throws IOException {
+    long           deliveryTag = getDeliveryTag(message);
+    AckAccumulator accumulator = AckAccumulator.get(channel);
+    if (accumulator == null) {
+      channel.basicAck(deliveryTag, false);
+    } else {
+      accumulator.ack(deliveryTag);
+    }
+    RabbitMqMetrics m = metrics;
+    if (m != RabbitMqMetrics.NOOP) {
+      MessageProperties properties = message.getMessageProperties();
+      m.onAck(properties.getConsumerQueue(), properties.getReceivedRoutingKey());
+    }
+  }
+
+  /**
+   * 执行reject，Channel 注册了 {@link AckAccumulator} 时同步更新累加器
+   *
+   * @param channel Channel
+   * @param message Message
+   * @param requeue 是否重新入队
+   */
+  static void reject(Channel channel, Message message, boolean requeue) throws IOException {
+    long           deliveryTag = getDeliveryTag(message);
+    AckAccumulator accumulator = AckAccumulator.get(channel);
+    if (accumulator == null) {
+      channel.basicReject(deliveryTag, requeue);
+    } else {
+      accumulator.reject(deliveryTag, requeue);
+    }
+    RabbitMqMetrics m = metrics;
+    if (m != RabbitMqMetrics.NOOP) {
+      MessageProperties properties = message.getMessageProperties();
+      m.onReject(properties.getConsumerQueue(), properties.getReceivedRoutingKey(), requeue);
+    }
+  }
+
+  /**
+   * 执行处理方法并记录耗时
+   *
+   * @param message Message
+   * @param handler 处理方法
+   */
+  static void handle(Message message, Task handler) throws Exception {
+    RabbitMqMetrics m = metrics;
+    if (m == RabbitMqMetrics.NOOP) {
+      handler.execute();
+      return;
+    }
+    long    start   = System.nanoTime();
+    boolean success = false;
+    try {
+      handler.execute();
+      success = true;
+    } finally {
+      MessageProperties properties = message.getMessageProperties();
+      m.onHandle(properties.getConsumerQueue(), properties.getReceivedRoutingKey(), System.nanoTime() - start,
+          success);
+    }
+  }
+
+  private static void republish(RabbitTemplate template, Message message, String exchange, String routingKey) {
+    RabbitMqMetrics m = metrics;
+    if (m == RabbitMqMetrics.NOOP) {
+      template.convertAndSend(exchange, routingKey, message);
+      return;
+    }
+    MessageProperties properties = message.getMessageProperties();
+    String            queue      = properties.getConsumerQueue();
+    String            received   = properties.getReceivedRoutingKey();
+    long              start      = System.nanoTime();
+    boolean           success    = false;
+    try {
+      template.convertAndSend(exchange, routingKey, message);
+      success = true;
+    } finally {
+      m.onRepublish(queue, received, System.nanoTime() - start, success);
+    }
+  }
+
+  private static void giveUp(Message message, Task task) throws Exception {
+    RabbitMqMetrics m = metrics;
+    if (m != RabbitMqMetrics.NOOP) {
+      MessageProperties properties = message.getMessageProperties();
+      m.onGiveUp(properties.getConsumerQueue(), properties.getReceivedRoutingKey());
+    }
+    task.execute();
+  }
+
+  private static void onXDeath(Message message, long count) {
+    RabbitMqMetrics m = metrics;
+    if (m != RabbitMqMetrics.NOOP) {
+      MessageProperties properties = message.getMessageProperties();
+      m.onXDeath(properties.getConsumerQueue(), properties.getReceivedRoutingKey(), count);
     }
   }
 
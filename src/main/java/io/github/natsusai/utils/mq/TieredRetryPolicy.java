@@ -0,0 +1,227 @@
+package io.github.natsusai.utils.mq;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Binding.DestinationType;
+import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.QueueBuilder;
+
+/**
+ * 分级延迟重试策略
+ * <p/>
+ * 根据消息在各级延迟队列中的 x-death 计数之和将失败消息发送到对应级别的延迟队列，延迟按指数增长直到上限，
+ * 延迟队列中的消息过期后经默认交换机回到原队列。
+ * <p/>
+ * 对于队列 {@code order}，使用直连交换机 {@code order.retry}，
+ * 第 i 级延迟队列为 {@code order.retry.i}，路由键值与队列名称相同，可通过 {@link #declare(AmqpAdmin)} 声明。
+ * <p/>
+ * 抖动通过消息的 expiration 属性实现，只会缩短延迟；同一队列中较早过期的消息可能被队首消息阻塞，
+ * 最多额外等待抖动比例的时间。
+ *
+ * @author Kurenai
+ * @since 2020-10-26 11:02
+ */
+
+public class TieredRetryPolicy {
+
+  private static final double MULTIPLIER = 2.0;
+  private static final double JITTER     = 0.2;
+
+  private final String queue;
+  private final int    maxAttempts;
+  private final double jitter;
+  private final long[] delays;
+
+  /**
+   * 延迟每级翻倍，抖动为延迟的20%
+   *
+   * @param queue       原队列名称
+   * @param maxAttempts 最大重试次数
+   * @param baseDelay   第一级延迟
+   * @param maxDelay    最大延迟
+   * @param unit        时间单位
+   */
+  public TieredRetryPolicy(String queue, int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit) {
+    this(queue, maxAttempts, baseDelay, maxDelay, unit, MULTIPLIER, JITTER);
+  }
+
+  /**
+   * @param queue       原队列名称
+   * @param maxAttempts 最大重试次数
+   * @param baseDelay   第一级延迟
+   * @param maxDelay    最大延迟
+   * @param unit        时间单位
+   * @param multiplier  每级延迟倍数
+   * @param jitter      抖动比例，取值 [0, 1)
+   */
+  public TieredRetryPolicy(String queue, int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit,
+      double multiplier, double jitter) {
+    if (maxAttempts < 0) {
+      throw new IllegalArgumentException("maxAttempts must not be negative: " + maxAttempts);
+    }
+    if (baseDelay < 1 || maxDelay < baseDelay) {
+      throw new IllegalArgumentException("invalid delay: " + baseDelay + " - " + maxDelay);
+    }
+    if (multiplier < 1) {
+      throw new IllegalArgumentException("multiplier must not be less than 1: " + multiplier);
+    }
+    if (jitter < 0 || jitter >= 1) {
+      throw new IllegalArgumentException("jitter must be in [0, 1): " + jitter);
+    }
+    this.queue       = queue;
+    this.maxAttempts = maxAttempts;
+    this.jitter      = jitter;
+    this.delays      = computeDelays(maxAttempts, unit.toMillis(baseDelay), unit.toMillis(maxDelay), multiplier);
+  }
+
+  /**
+   * 获取最大重试次数
+   *
+   * @return 最大重试次数
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * 获取延迟级数
+   *
+   * @return 延迟级数
+   */
+  public int getTiers() {
+    return delays.length;
+  }
+
+  /**
+   * 获取已重试次数
+   * <p/>
+   * 只统计本策略各级延迟队列的 x-death 记录，消息进入原队列之前在其它队列的死信记录不计入
+   *
+   * @param message Message
+   * @return 已重试次数
+   */
+  public long getAttempts(Message message) {
+    List<Map<String, ?>> xDeath = message.getMessageProperties().getXDeathHeader();
+    if (xDeath == null) {
+      return 0L;
+    }
+    long count = 0L;
+    for (Map<String, ?> death : xDeath) {
+      Object value = death.get("count");
+      if (isTierQueue(death.get("queue")) && value instanceof Number) {
+        count += ((Number) value).longValue();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * 是否还能重试
+   *
+   * @param attempts 已重试次数，见 {@link #getAttempts(Message)}
+   * @return 能重试则返回true
+   */
+  public boolean canRetry(long attempts) {
+    return attempts < maxAttempts;
+  }
+
+  /**
+   * 获取重试交换机名称
+   *
+   * @return 交换机名称
+   */
+  public String getExchange() {
+    return queue + ".retry";
+  }
+
+  /**
+   * 获取对应级别延迟队列的路由键值
+   *
+   * @param attempts 已重试次数，见 {@link #getAttempts(Message)}
+   * @return 路由键值
+   */
+  public String getRoutingKey(long attempts) {
+    return getQueueName(tier(attempts));
+  }
+
+  /**
+   * 获取对应级别的延迟（毫秒）
+   *
+   * @param attempts 已重试次数，见 {@link #getAttempts(Message)}
+   * @return 延迟毫秒数
+   */
+  public long getDelay(long attempts) {
+    return delays[tier(attempts)];
+  }
+
+  /**
+   * 获取带抖动的消息过期时间（毫秒），不超过对应级别延迟队列的 TTL
+   *
+   * @param attempts 已重试次数，见 {@link #getAttempts(Message)}
+   * @return 过期毫秒数
+   */
+  public long getExpiration(long attempts) {
+    long delay = getDelay(attempts);
+    if (jitter == 0) {
+      return delay;
+    }
+    return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+  }
+
+  /**
+   * 声明重试交换机以及各级延迟队列
+   *
+   * @param admin AmqpAdmin
+   */
+  public void declare(AmqpAdmin admin) {
+    String exchange = getExchange();
+    admin.declareExchange(new DirectExchange(exchange, true, false));
+    for (int i = 0; i < delays.length; i++) {
+      String name = getQueueName(i);
+      admin.declareQueue(QueueBuilder.durable(name)
+          .ttl((int) Math.min(Integer.MAX_VALUE, delays[i]))
+          .deadLetterExchange("")
+          .deadLetterRoutingKey(queue)
+          .build());
+      admin.declareBinding(new Binding(name, DestinationType.QUEUE, exchange, name, null));
+    }
+  }
+
+  private String getQueueName(int tier) {
+    return queue + ".retry." + tier;
+  }
+
+  private boolean isTierQueue(Object name) {
+    for (int i = 0; i < delays.length; i++) {
+      if (getQueueName(i).equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int tier(long attempts) {
+    return (int) Math.max(0, Math.min(attempts, delays.length - 1));
+  }
+
+  private static long[] computeDelays(int maxAttempts, long baseDelay, long maxDelay, double multiplier) {
+    int    tiers = 1;
+    double delay = baseDelay;
+    while (tiers < maxAttempts && delay < maxDelay) {
+      delay *= multiplier;
+      tiers++;
+    }
+    long[] delays = new long[tiers];
+    delay = baseDelay;
+    for (int i = 0; i < tiers; i++) {
+      delays[i] = (long) Math.min(delay, maxDelay);
+      delay *= multiplier;
+    }
+    return delays;
+  }
+}
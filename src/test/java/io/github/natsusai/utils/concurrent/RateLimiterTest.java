@@ -0,0 +1,52 @@
+package io.github.natsusai.utils.concurrent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-04 14:10
+ */
+
+public class RateLimiterTest {
+
+  @Test
+  public void burstIsGrantedImmediately() {
+    RateLimiter limiter = new RateLimiter(1, 5);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(limiter.tryAcquire());
+    }
+    assertFalse(limiter.tryAcquire());
+  }
+
+  @Test
+  public void warmUpWithBurstBelowColdFactorStillGrants() {
+    RateLimiter limiter = new RateLimiter(1000, 1, 1, TimeUnit.SECONDS);
+    // 按稳定消耗判断，冷启动时突发容量为 1 也能立即获取
+    assertTrue(limiter.tryAcquire());
+    // 预热多出的消耗只推迟之后的许可，最多为稳定间隔的 3 倍
+    long wait = limiter.reserve(1, Long.MAX_VALUE);
+    assertTrue("wait " + wait, wait <= TimeUnit.MILLISECONDS.toNanos(3));
+  }
+
+  @Test
+  public void warmUpSlowsDownColdLimiter() {
+    long        start   = System.nanoTime();
+    RateLimiter limiter = new RateLimiter(1000, 1, 1, TimeUnit.SECONDS);
+    for (int i = 0; i < 100; i++) {
+      limiter.reserve(1, Long.MAX_VALUE);
+    }
+    long wait    = limiter.waitNanos(1);
+    long elapsed = System.nanoTime() - start;
+    // 预占的总消耗不超过 桶被取空的时刻距今的时间 + 经过的时间 + 初始的突发容量，
+    // 再获取一个许可的等待时间正好多出一个稳定间隔，与突发容量抵消，结果与时间流逝无关
+    long   consumed = wait + elapsed;
+    double factor   = Math.max(1.0, 3.0 - 2.0 * elapsed / TimeUnit.SECONDS.toNanos(1));
+    long   steady   = TimeUnit.MILLISECONDS.toNanos(100);
+    assertTrue("consumed " + consumed, consumed >= (long) (steady * factor) - TimeUnit.MILLISECONDS.toNanos(1));
+    assertTrue("consumed " + consumed, consumed <= steady * 3 + elapsed + TimeUnit.MILLISECONDS.toNanos(1));
+  }
+}
@@ -0,0 +1,70 @@
+package io.github.natsusai.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-04 14:40
+ */
+
+public class StripedRateLimiterTest {
+
+  @Test
+  public void totalBurstMatchesConfiguredBurst() {
+    StripedRateLimiter limiter = new StripedRateLimiter(1, 10, 0, TimeUnit.NANOSECONDS, 16);
+    int                granted = 0;
+    while (limiter.tryAcquire()) {
+      granted++;
+    }
+    assertEquals(10, granted);
+  }
+
+  @Test
+  public void requestsLargerThanOneStripeAreSplit() {
+    StripedRateLimiter limiter = new StripedRateLimiter(1, 10, 0, TimeUnit.NANOSECONDS, 16);
+    assertTrue(limiter.tryAcquire(2));
+    assertTrue(limiter.tryAcquire(5));
+    assertFalse(limiter.tryAcquire(4));
+    assertTrue(limiter.tryAcquire(3));
+    assertFalse(limiter.tryAcquire());
+  }
+
+  @Test
+  public void failedSplitReturnsReservedPermits() {
+    StripedRateLimiter limiter = new StripedRateLimiter(1, 8, 0, TimeUnit.NANOSECONDS, 8);
+    assertFalse(limiter.tryAcquire(9));
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire(8));
+    assertTrue(limiter.tryAcquire(7));
+    assertFalse(limiter.tryAcquire());
+  }
+
+  @Test
+  public void acquireUsesWholeRate() {
+    StripedRateLimiter limiter = new StripedRateLimiter(100, 1, 0, TimeUnit.NANOSECONDS, 1);
+    assertTrue(limiter.tryAcquire());
+    // 等待时间只会随时间流逝变短，单个分段时为 10ms
+    long wait = limiter.reserve(1, Long.MAX_VALUE);
+    assertTrue("wait " + wait, wait <= TimeUnit.MILLISECONDS.toNanos(10));
+
+    StripedRateLimiter striped = new StripedRateLimiter(400, 4, 0, TimeUnit.NANOSECONDS, 4);
+    assertTrue(striped.tryAcquire(4));
+    // 4 个许可按 400/s 约 10ms，落在单个 100/s 的分段上则需要 40ms
+    wait = striped.reserve(4, Long.MAX_VALUE);
+    assertTrue("wait " + wait, wait <= TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  @Test
+  public void acquireWithoutTimeoutWaitsForPermits() {
+    StripedRateLimiter limiter = new StripedRateLimiter(1000, 4, 0, TimeUnit.NANOSECONDS, 4);
+    assertTrue(limiter.tryAcquire(4));
+    limiter.acquire();
+    // 超过突发容量的请求拆分到所有分段上等待
+    limiter.acquire(6);
+  }
+}
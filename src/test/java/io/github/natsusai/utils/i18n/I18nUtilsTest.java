@@ -0,0 +1,107 @@
+package io.github.natsusai.utils.i18n;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-06 10:20
+ */
+
+public class I18nUtilsTest {
+
+  private static final String[] RANGES = {
+      "en", "EN", "en-US", "en_US", "zh-CN", "zh_hant_TW", "fr", "de-DE", "*", "en-*", "*-US", "iw", "he",
+      "ji", "yi", "x-foo", "i-klingon", "abcdefgh", "abcdefghi", "en-12345678", "en-123456789", "1a", "en-",
+      "-en", "en--US", "a*", "", " "};
+
+  private static final String[] WEIGHTS = {
+      "", ";q=1", ";q=1.0", ";q=1.000", ";q=1.001", ";q=0", ";q=0.5", ";q=0.50", ";q=0.123", ";q=0.1234",
+      ";q=.5", ";q=", ";Q=0.3", "; q = 0.3", ";q=0.5.1", ";q=2", ";x=0.5", ";", ";q=00.5", ";q=0.999"};
+
+  private static final char[] NOISE = {' ', ',', ';', '-', '_', '=', '.', '*', 'q', '0', '!', '\t'};
+
+  @Test
+  public void randomHeadersMatchLanguageRangeParse() {
+    Random random = new Random(20201106L);
+    for (int n = 0; n < 200000; n++) {
+      String header = randomHeader(random);
+      assertEquals(header, I18nUtils.parseByLanguageRange(header), I18nUtils.resolve(header));
+    }
+  }
+
+  @Test
+  public void underscoreIsTreatedAsHyphen() {
+    assertResolves(Locale.forLanguageTag("en-US"), "en_US");
+    assertResolves(Locale.forLanguageTag("zh-Hant-TW"), "zh_Hant_TW,en;q=0.5");
+  }
+
+  @Test
+  public void weightEdgeCases() {
+    assertResolves(Locale.ENGLISH, "en;q=1,fr;q=1");
+    assertResolves(Locale.ENGLISH, "en;q=1.000");
+    assertResolves(Locale.ENGLISH, "en ; Q = 0.5 , fr ; q = 0.5");
+    assertResolves(null, "en;q=1.001");
+    assertResolves(null, "en;q=2");
+    assertResolves(null, "en;x=0.5");
+    assertResolves(null, "en;q=0.5.1");
+  }
+
+  @Test
+  public void emptyRanges() {
+    assertResolves(null, "");
+    assertResolves(null, ",");
+    assertResolves(null, ",en");
+    assertResolves(null, "en,,fr");
+    assertResolves(null, ";q=0.5");
+    assertResolves(Locale.ENGLISH, "en,");
+  }
+
+  @Test
+  public void equivalentLanguages() {
+    assertResolves(Locale.forLanguageTag("he"), "he;q=0.5,iw;q=0.8");
+    assertResolves(Locale.forLanguageTag("iw"), "iw,he;q=0.8");
+    assertResolves(Locale.forLanguageTag("yi"), "ji;q=0.1,yi;q=0.9");
+  }
+
+  @Test
+  public void fallbackTriggers() {
+    // 之后的范围权重更高
+    assertSame(I18nUtils.FALLBACK, I18nUtils.parseFirstRange("en;q=0.5,fr"));
+    // 权重超过三位小数或没有数字
+    assertSame(I18nUtils.FALLBACK, I18nUtils.parseFirstRange("en;q=0.1234"));
+    assertSame(I18nUtils.FALLBACK, I18nUtils.parseFirstRange("en;q="));
+    // 非常规字符
+    assertSame(I18nUtils.FALLBACK, I18nUtils.parseFirstRange("en!"));
+    assertSame(I18nUtils.FALLBACK, I18nUtils.parseFirstRange("en\t"));
+    assertNotSame(I18nUtils.FALLBACK, I18nUtils.parseFirstRange("en-US,fr;q=0.5"));
+    assertEquals("en-us", I18nUtils.parseFirstRange("en-US,fr;q=0.5"));
+  }
+
+  private static void assertResolves(Locale expected, String header) {
+    assertEquals(header, expected, I18nUtils.resolve(header));
+    assertEquals(header, I18nUtils.parseByLanguageRange(header), I18nUtils.resolve(header));
+  }
+
+  private static String randomHeader(Random random) {
+    StringBuilder header = new StringBuilder();
+    int           ranges = random.nextInt(4);
+    for (int r = 0; r <= ranges; r++) {
+      if (r > 0) {
+        header.append(random.nextInt(4) == 0 ? ", " : ",");
+      }
+      header.append(RANGES[random.nextInt(RANGES.length)]);
+      header.append(WEIGHTS[random.nextInt(WEIGHTS.length)]);
+      if (random.nextInt(8) == 0) {
+        header.insert(random.nextInt(header.length() + 1), NOISE[random.nextInt(NOISE.length)]);
+      }
+    }
+    return header.toString();
+  }
+}
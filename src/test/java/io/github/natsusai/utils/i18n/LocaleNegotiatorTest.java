@@ -0,0 +1,88 @@
+package io.github.natsusai.utils.i18n;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Locale;
+import org.junit.Test;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-06 11:30
+ */
+
+public class LocaleNegotiatorTest {
+
+  private static final Locale ZH_HANS    = Locale.forLanguageTag("zh-Hans");
+  private static final Locale ZH_HANT_TW = Locale.forLanguageTag("zh-Hant-TW");
+  private static final Locale EN_GB      = Locale.forLanguageTag("en-GB");
+
+  private final LocaleNegotiator negotiator = new LocaleNegotiator(
+      Arrays.asList(Locale.ENGLISH, EN_GB, Locale.US, ZH_HANS, ZH_HANT_TW, Locale.TAIWAN));
+
+  @Test
+  public void exactMatchWinsOverFallbackKeys() {
+    assertEquals(Locale.US, negotiator.resolve(Locale.US));
+    assertEquals(EN_GB, negotiator.resolve(EN_GB));
+    assertEquals(ZH_HANT_TW, negotiator.resolve(ZH_HANT_TW));
+    assertEquals(Locale.TAIWAN, negotiator.resolve(Locale.TAIWAN));
+  }
+
+  @Test
+  public void fallbackOrder() {
+    // 语言-文字
+    assertEquals(ZH_HANS, negotiator.resolve(Locale.forLanguageTag("zh-Hans-SG")));
+    assertEquals(ZH_HANT_TW, negotiator.resolve(Locale.forLanguageTag("zh-Hant-HK")));
+    // 语言-地区
+    assertEquals(Locale.TAIWAN, negotiator.resolve(Locale.forLanguageTag("zh-Latn-TW")));
+    // 语言，指向先声明的 Locale
+    assertEquals(Locale.ENGLISH, negotiator.resolve(Locale.forLanguageTag("en-AU")));
+    assertEquals(ZH_HANS, negotiator.resolve(Locale.forLanguageTag("zh-HK")));
+    // 无法匹配时返回默认 Locale
+    assertEquals(Locale.ENGLISH, negotiator.resolve(Locale.JAPANESE));
+  }
+
+  @Test
+  public void negotiateByWeight() {
+    assertEquals(Locale.TAIWAN, negotiator.negotiate("ja,zh-TW;q=0.8,en;q=0.5"));
+    assertEquals(EN_GB, negotiator.negotiate("en-GB;q=0.5,fr;q=0.9"));
+    assertEquals(Locale.US, negotiator.negotiate("en_US"));
+    assertEquals(Locale.ENGLISH, negotiator.negotiate("ja"));
+    assertEquals(Locale.ENGLISH, negotiator.negotiate("en;q=2"));
+  }
+
+  @Test
+  public void wildcardMatchesDefaultLocale() {
+    assertEquals(Locale.ENGLISH, negotiator.negotiate("ja,*;q=0.5"));
+    assertEquals(ZH_HANS, negotiator.negotiate("ja,*;q=0.5,en;q=0"));
+  }
+
+  @Test
+  public void zeroWeightRangesAreExcluded() {
+    // 默认 Locale 被排除时不作为回退结果
+    assertEquals(ZH_HANS, negotiator.negotiate("en;q=0,*"));
+    assertEquals(ZH_HANS, negotiator.negotiate("ja,en;q=0"));
+    // 前缀匹配：en 排除所有英语，en-US 只排除美式英语
+    assertEquals(ZH_HANS, negotiator.negotiate("en-US,en;q=0"));
+    assertEquals(Locale.ENGLISH, negotiator.negotiate("en-US;q=0,en"));
+    // 未匹配且其它语言都不可接受
+    assertNull(negotiator.negotiate("ja,*;q=0"));
+    assertEquals(Locale.TAIWAN, negotiator.negotiate("zh-TW,*;q=0"));
+    LocaleNegotiator english = new LocaleNegotiator(Arrays.asList(Locale.ENGLISH, Locale.US));
+    assertNull(english.negotiate("fr,en;q=0"));
+  }
+
+  @Test
+  public void resolveIsCachedAndBounded() {
+    Locale first = new Locale("en", "NZ");
+    assertSame(negotiator.resolve(first), negotiator.resolve(new Locale("en", "NZ")));
+    assertEquals(1, negotiator.getResolvedCacheSize());
+    for (int i = 0; i < 3000; i++) {
+      negotiator.resolve(new Locale("en", "", "v" + i));
+      assertTrue(negotiator.getResolvedCacheSize() <= 1024);
+    }
+  }
+}
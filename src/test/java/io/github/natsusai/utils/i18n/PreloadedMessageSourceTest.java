@@ -0,0 +1,119 @@
+package io.github.natsusai.utils.i18n;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-06 14:10
+ */
+
+public class PreloadedMessageSourceTest {
+
+  private final PreloadedMessageSource source = new PreloadedMessageSource(
+      Arrays.asList(Locale.ENGLISH, Locale.SIMPLIFIED_CHINESE), "i18n.messages", "i18n.errors");
+
+  @Test
+  public void mergesParentBundle() {
+    assertEquals("Goodbye", source.getMessage("farewell", Locale.ENGLISH));
+    assertEquals("From parent", source.getMessage("parent.only", Locale.ENGLISH));
+    assertEquals("From parent", source.getMessage("parent.only", Locale.SIMPLIFIED_CHINESE));
+    assertNull(source.getMessage("missing", Locale.ENGLISH));
+  }
+
+  @Test
+  public void readsUtf8() {
+    assertEquals("你好，Kurenai", source.getMessage("greeting", Locale.SIMPLIFIED_CHINESE, "Kurenai"));
+    assertEquals("再见", source.getMessage("farewell", Locale.SIMPLIFIED_CHINESE));
+  }
+
+  @Test
+  public void earlierBasenameWins() {
+    assertEquals("Hello, Kurenai", source.getMessage("greeting", Locale.ENGLISH, "Kurenai"));
+    assertEquals("Error 42", source.getMessage("error", Locale.ENGLISH, 42));
+  }
+
+  @Test
+  public void escapesQuotes() {
+    // 不含参数的消息在加载时格式化，同样处理引号转义
+    assertEquals("It's done, {braces}", source.getMessage("plain", Locale.ENGLISH));
+    assertEquals("It's Bob's turn, {literal}", source.getMessage("quoted", Locale.ENGLISH, "Bob"));
+  }
+
+  @Test
+  public void unsupportedLocaleIsResolved() {
+    Locale locale = I18nUtils.getLocale("en-US,en;q=0.9");
+    assertEquals(Locale.US, locale);
+    assertEquals("Goodbye", source.getMessage("farewell", locale));
+    assertEquals("再见", source.getMessageByAcceptLanguage("farewell", "zh-CN,zh;q=0.9"));
+    assertEquals("Goodbye", source.getMessageByAcceptLanguage("farewell", "ja"));
+    assertEquals("Goodbye", source.getMessage("farewell", null));
+  }
+
+  @Test
+  public void concurrentFormatting() throws Exception {
+    ExecutorService      executor = Executors.newFixedThreadPool(16);
+    List<Future<String>> results  = new ArrayList<>();
+    try {
+      for (int i = 0; i < 2000; i++) {
+        int n = i;
+        results.add(executor.submit(() -> source.getMessage("error", Locale.ENGLISH, "e" + n)));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertEquals("Error e" + i, results.get(i).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void reloadSwapsMessagesAndKeepsOldOnFailure() throws Exception {
+    Path dir    = Files.createTempDirectory("bundles");
+    Path bundle = dir.resolve("reload.properties");
+    write(bundle, "greeting=Hello {0}\n");
+    try (URLClassLoader loader = new URLClassLoader(new URL[]{dir.toUri().toURL()}, null)) {
+      PreloadedMessageSource reloadable = new PreloadedMessageSource(
+          new LocaleNegotiator(Arrays.asList(Locale.ENGLISH)), loader, "reload");
+      assertEquals("Hello A", reloadable.getMessage("greeting", Locale.ENGLISH, "A"));
+
+      write(bundle, "greeting=Hi {0}\n");
+      reloadable.reload();
+      assertEquals("Hi A", reloadable.getMessage("greeting", Locale.ENGLISH, "A"));
+
+      // 非法的 unicode 转义使加载失败
+      write(bundle, "greeting=\\uZZZZ\n");
+      try {
+        reloadable.reload();
+        fail("reload should fail");
+      } catch (MissingResourceException e) {
+        assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalArgumentException);
+      }
+      assertEquals("Hi A", reloadable.getMessage("greeting", Locale.ENGLISH, "A"));
+    } finally {
+      Files.delete(bundle);
+      Files.delete(dir);
+    }
+  }
+
+  private static void write(Path path, String content) throws Exception {
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+  }
+}
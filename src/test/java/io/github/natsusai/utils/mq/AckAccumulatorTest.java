@@ -0,0 +1,177 @@
+package io.github.natsusai.utils.mq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.Channel;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-04 11:20
+ */
+
+public class AckAccumulatorTest {
+
+  private static final String QUEUE = "work";
+
+  private EmbeddedBroker  broker;
+  private EmbeddedChannel embedded;
+  private Channel         channel;
+
+  @Before
+  public void setUp() {
+    broker = new EmbeddedBroker();
+    broker.declareQueue(QUEUE);
+    embedded = broker.createChannel();
+    channel  = embedded.getChannel();
+  }
+
+  @Test
+  public void scheduledFlushAfterRejectDoesNotAckRejectedTag() throws Exception {
+    publish(2);
+    AckAccumulator.register(channel);
+    try {
+      Message first  = embedded.receive(QUEUE);
+      Message second = embedded.receive(QUEUE);
+      RabbitMqUtils.simpleRetry(channel, second);
+      RabbitMqUtils.ack(channel, first);
+      waitForFlush();
+      assertTrue(channel.isOpen());
+      assertEquals(0, embedded.getUnackedCount());
+      assertEquals(1, broker.getMessageCount(QUEUE));
+    } finally {
+      closeAccumulator();
+    }
+  }
+
+  @Test
+  public void flushedTagsAreNotAckedAgainByBatch() throws Exception {
+    publish(3);
+    AckAccumulator accumulator = new AckAccumulator(channel, 2, 1, TimeUnit.HOURS);
+    List<Message>  messages    = receiveAll();
+    accumulator.ack(tag(messages.get(2)));
+    accumulator.flush();
+    accumulator.ack(tag(messages.get(1)));
+    accumulator.ack(tag(messages.get(0)));
+    accumulator.flush();
+    assertTrue(channel.isOpen());
+    assertEquals(0, embedded.getUnackedCount());
+  }
+
+  @Test
+  public void outOfOrderAcksAndRejects() throws Exception {
+    int count = 200;
+    publish(count);
+    AckAccumulator accumulator = new AckAccumulator(channel, 8, 1, TimeUnit.HOURS);
+    List<Message>  messages    = receiveAll();
+    Collections.shuffle(messages, new Random(7));
+    Random random   = new Random(11);
+    int    rejected = 0;
+    for (Message message : messages) {
+      int action = random.nextInt(10);
+      if (action < 3) {
+        accumulator.reject(tag(message), true);
+        rejected++;
+      } else {
+        accumulator.ack(tag(message));
+      }
+      if (action == 9) {
+        accumulator.flush();
+      }
+      assertTrue(channel.isOpen());
+    }
+    accumulator.flush();
+    assertTrue(channel.isOpen());
+    assertEquals(0, embedded.getUnackedCount());
+    assertEquals(rejected, broker.getMessageCount(QUEUE));
+  }
+
+  @Test
+  public void permanentGapKeepsOneRange() throws Exception {
+    int count = 5000;
+    publish(count);
+    AckAccumulator accumulator = new AckAccumulator(channel, 8, 1, TimeUnit.HOURS);
+    List<Message>  messages    = receiveAll();
+    // 第一条消息在累加器之外确认，前缀永远无法连续
+    channel.basicAck(tag(messages.get(0)), false);
+    for (int i = 1; i < count; i++) {
+      accumulator.ack(tag(messages.get(i)));
+      if (i % 100 == 0) {
+        accumulator.flush();
+      }
+    }
+    accumulator.flush();
+    assertTrue(channel.isOpen());
+    assertEquals(0, embedded.getUnackedCount());
+    assertEquals(1, accumulator.getGapCount());
+  }
+
+  @Test
+  public void tooManyGapsAreSkipped() throws Exception {
+    int count = 4000;
+    publish(count);
+    AckAccumulator accumulator = new AckAccumulator(channel, 8, 1, TimeUnit.HOURS);
+    List<Message>  messages    = receiveAll();
+    for (int i = 0; i < count; i++) {
+      if (i % 2 == 0) {
+        channel.basicAck(tag(messages.get(i)), false);
+      } else {
+        accumulator.ack(tag(messages.get(i)));
+      }
+      if (i % 100 == 0) {
+        accumulator.flush();
+      }
+      assertTrue(accumulator.getGapCount() <= 1024);
+    }
+    accumulator.flush();
+    assertTrue(channel.isOpen());
+    assertEquals(0, embedded.getUnackedCount());
+  }
+
+  private void publish(int count) {
+    for (int i = 0; i < count; i++) {
+      MessageProperties properties = new MessageProperties();
+      properties.setMessageId(Integer.toString(i));
+      broker.publish("", QUEUE, new Message(new byte[0], properties));
+    }
+  }
+
+  private List<Message> receiveAll() {
+    List<Message> messages = new ArrayList<>();
+    Message       message;
+    while ((message = embedded.receive(QUEUE)) != null) {
+      messages.add(message);
+    }
+    return messages;
+  }
+
+  private void waitForFlush() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 1000;
+    while (embedded.getUnackedCount() > 0 && channel.isOpen() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    Thread.sleep(50);
+  }
+
+  private void closeAccumulator() throws Exception {
+    AckAccumulator accumulator = AckAccumulator.get(channel);
+    if (accumulator != null) {
+      accumulator.close();
+    }
+  }
+
+  private static long tag(Message message) {
+    return RabbitMqUtils.getDeliveryTag(message);
+  }
+}
@@ -0,0 +1,107 @@
+package io.github.natsusai.utils.mq;
+
+import static org.junit.Assert.assertEquals;
+
+import com.rabbitmq.client.Channel;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker.EmbeddedChannel;
+import io.github.natsusai.utils.mq.embedded.EmbeddedRabbitTemplate;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory.ConfirmType;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-04 16:05
+ */
+
+public class ConfirmedRepublisherTest {
+
+  private static final String QUEUE = "work";
+  private static final String DLX   = "work.dlx";
+  private static final String DELAY = "work.delay";
+
+  private EmbeddedBroker  broker;
+  private EmbeddedChannel embedded;
+  private Channel         channel;
+
+  @Before
+  public void setUp() {
+    broker = new EmbeddedBroker();
+    broker.declareQueue(QUEUE);
+    broker.declareExchange(DLX);
+    broker.declareQueue(DELAY);
+    broker.bind(DELAY, DLX, QUEUE);
+    embedded = broker.createChannel();
+    channel  = embedded.getChannel();
+  }
+
+  @Test
+  public void confirmedRepublishAcksOriginal() throws Exception {
+    ConfirmedRepublisher republisher = new ConfirmedRepublisher(new EmbeddedRabbitTemplate(broker));
+    publish();
+    republisher.republish(channel, embedded.receive(QUEUE), DLX, QUEUE);
+    assertEquals(0, embedded.getUnackedCount());
+    assertEquals(0, broker.getMessageCount(QUEUE));
+    assertEquals(1, broker.getMessageCount(DELAY));
+    assertEquals(0, republisher.getInFlight());
+  }
+
+  @Test
+  public void returnedRepublishRequeuesOriginal() throws Exception {
+    ConfirmedRepublisher republisher = new ConfirmedRepublisher(new EmbeddedRabbitTemplate(broker));
+    publish();
+    republisher.republish(channel, embedded.receive(QUEUE), DLX, "unbound");
+    assertEquals(0, embedded.getUnackedCount());
+    assertEquals(1, broker.getMessageCount(QUEUE));
+    assertEquals(0, republisher.getInFlight());
+  }
+
+  @Test
+  public void missingConfirmTimesOutAndRequeuesOriginal() throws Exception {
+    EmbeddedRabbitTemplate silent = new EmbeddedRabbitTemplate(broker) {
+      @Override
+      public void send(String exchange, String routingKey, Message message, CorrelationData correlationData) {
+      }
+    };
+    ConfirmedRepublisher republisher = new ConfirmedRepublisher(silent, 1, 50, TimeUnit.MILLISECONDS);
+    publish();
+    republisher.republish(channel, embedded.receive(QUEUE), DLX, QUEUE);
+    assertEquals(1, republisher.getInFlight());
+    long deadline = System.currentTimeMillis() + 2000;
+    while (republisher.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(0, republisher.getInFlight());
+    assertEquals(0, embedded.getUnackedCount());
+    assertEquals(1, broker.getMessageCount(QUEUE));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTemplateWithoutConfirms() {
+    new ConfirmedRepublisher(new RabbitTemplate(new CachingConnectionFactory()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTemplateWithoutMandatory() {
+    CachingConnectionFactory connectionFactory = new CachingConnectionFactory();
+    connectionFactory.setPublisherConfirmType(ConfirmType.CORRELATED);
+    connectionFactory.setPublisherReturns(true);
+    new ConfirmedRepublisher(new RabbitTemplate(connectionFactory));
+  }
+
+  @Test
+  public void acceptsFullyConfiguredTemplate() {
+    assertEquals(0, new ConfirmedRepublisher(new EmbeddedRabbitTemplate(broker)).getInFlight());
+  }
+
+  private void publish() {
+    broker.publish("", QUEUE, new Message(new byte[0], new MessageProperties()));
+  }
+}
@@ -0,0 +1,160 @@
+package io.github.natsusai.utils.mq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.github.natsusai.utils.mq.DeduplicationGuard.KeyStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-05 14:20
+ */
+
+public class DeduplicationGuardTest {
+
+  private static final Function<Message, ?> MESSAGE_ID = m -> m.getMessageProperties().getMessageId();
+
+  @Test
+  public void keepsRecordsWithinCapacity() {
+    DeduplicationGuard guard = new DeduplicationGuard(100, 1, TimeUnit.HOURS);
+    for (int i = 0; i < 50; i++) {
+      guard.markProcessed(message(i));
+    }
+    for (int i = 0; i < 50; i++) {
+      assertTrue(guard.isDuplicate(message(i)));
+    }
+    assertFalse(guard.isDuplicate(message(50)));
+  }
+
+  @Test
+  public void fullGenerationsEvictRecordsBeforeTtl() {
+    DeduplicationGuard guard = new DeduplicationGuard(10, 1, TimeUnit.HOURS);
+    for (int i = 0; i < 16; i++) {
+      guard.markProcessed(message(i));
+    }
+    // 之后又写入了容量一半的记录，最早的一代已被丢弃
+    assertFalse(guard.isDuplicate(message(0)));
+    assertTrue(guard.isDuplicate(message(15)));
+  }
+
+  @Test
+  public void saveAndLoadKeepUnexpiredRecords() throws Exception {
+    DeduplicationGuard guard = new DeduplicationGuard(100, 1, TimeUnit.HOURS);
+    for (int i = 0; i < 10; i++) {
+      guard.markProcessed(message(i));
+    }
+    Path path = Files.createTempFile("dedup", ".bin");
+    try {
+      guard.save(path);
+      DeduplicationGuard loaded = new DeduplicationGuard(100, 1, TimeUnit.HOURS);
+      loaded.load(path);
+      for (int i = 0; i < 10; i++) {
+        assertTrue(loaded.isDuplicate(message(i)));
+      }
+      assertFalse(loaded.isDuplicate(message(10)));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  public void loadSkipsExpiredRecords() throws Exception {
+    DeduplicationGuard guard = new DeduplicationGuard(100, 1, TimeUnit.MILLISECONDS);
+    guard.markProcessed(message(0));
+    Path path = Files.createTempFile("dedup", ".bin");
+    try {
+      Thread.sleep(5);
+      guard.save(path);
+      DeduplicationGuard loaded = new DeduplicationGuard(100, 1, TimeUnit.HOURS);
+      loaded.load(path);
+      assertFalse(loaded.isDuplicate(message(0)));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  public void bloomFrontNeverSkipsNewMessages() {
+    CountingStore      store = new CountingStore();
+    DeduplicationGuard guard = new DeduplicationGuard(MESSAGE_ID, 20000, 1, TimeUnit.HOURS, store);
+    for (int i = 0; i < 10000; i++) {
+      guard.markProcessed(message(i));
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(guard.isDuplicate(message(i)));
+    }
+    for (int i = 10000; i < 20000; i++) {
+      assertFalse(guard.isDuplicate(message(i)));
+    }
+  }
+
+  @Test
+  public void bloomFrontSkipsStoreOnMiss() throws Exception {
+    CountingStore      store = new CountingStore();
+    DeduplicationGuard guard = new DeduplicationGuard(MESSAGE_ID, 20000, 1, TimeUnit.SECONDS, store);
+    // 第一个 TTL 内布隆过滤器还不完整，查询都由外部存储确认
+    assertFalse(guard.isDuplicate(message(0)));
+    assertEquals(1, store.lookups.get());
+    Thread.sleep(1050);
+    store.lookups.set(0);
+    int probes = 10000;
+    for (int i = 0; i < 2000; i++) {
+      guard.markProcessed(message(UUID.randomUUID().toString()));
+    }
+    for (int i = 0; i < probes; i++) {
+      assertFalse(guard.isDuplicate(message(UUID.randomUUID().toString())));
+    }
+    // 两代布隆过滤器的误判率合计约 2%，只有误判才会查询外部存储
+    assertTrue("lookups " + store.lookups.get(), store.lookups.get() < probes * 3 / 100);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void keyStoreModeCannotSave() throws Exception {
+    DeduplicationGuard guard = new DeduplicationGuard(MESSAGE_ID, 100, 1, TimeUnit.HOURS, new CountingStore());
+    Path               path  = Files.createTempFile("dedup", ".bin");
+    try {
+      guard.save(path);
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  private static Message message(int id) {
+    return message("m" + id);
+  }
+
+  private static Message message(String id) {
+    MessageProperties properties = new MessageProperties();
+    properties.setMessageId(id);
+    return new Message(new byte[0], properties);
+  }
+
+  private static final class CountingStore implements KeyStore {
+
+    private final Set<Object>   keys    = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    @Override
+    public boolean contains(Object key) {
+      lookups.incrementAndGet();
+      return keys.contains(key);
+    }
+
+    @Override
+    public void put(Object key, long ttl, TimeUnit unit) {
+      keys.add(key);
+    }
+  }
+}
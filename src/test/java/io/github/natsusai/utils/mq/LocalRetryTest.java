@@ -0,0 +1,116 @@
+package io.github.natsusai.utils.mq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.Channel;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker.EmbeddedChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-05 11:30
+ */
+
+public class LocalRetryTest {
+
+  private static final String QUEUE = "work";
+
+  private EmbeddedBroker  broker;
+  private EmbeddedChannel embedded;
+  private Channel         channel;
+
+  @Before
+  public void setUp() {
+    broker = new EmbeddedBroker();
+    broker.declareQueue(QUEUE);
+    embedded = broker.createChannel();
+    channel  = embedded.getChannel();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsZeroBackoff() {
+    new LocalRetry(3, 0, 10, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void succeedsOnRetryAndAcks() throws Exception {
+    LocalRetry    retry    = new LocalRetry(3, 1, 10, TimeUnit.MILLISECONDS);
+    AtomicInteger attempts = new AtomicInteger();
+    publish();
+    retry.execute(channel, embedded.receive(QUEUE), () -> {
+      if (attempts.incrementAndGet() < 3) {
+        throw new IllegalStateException("fail");
+      }
+    }, () -> {
+      throw new AssertionError("fallback");
+    });
+    awaitSettled();
+    assertEquals(3, attempts.get());
+    assertEquals(0, broker.getMessageCount(QUEUE));
+  }
+
+  @Test
+  public void failingFallbackRequeuesDelivery() throws Exception {
+    LocalRetry retry = new LocalRetry(1, 1, 10, TimeUnit.MILLISECONDS);
+    publish();
+    retry.execute(channel, embedded.receive(QUEUE), () -> {
+      throw new IllegalStateException("fail");
+    }, () -> {
+      throw new IllegalStateException("fallback failed");
+    });
+    awaitSettled();
+    assertTrue(channel.isOpen());
+    assertEquals(1, broker.getMessageCount(QUEUE));
+  }
+
+  @Test
+  public void blockingHandlerDoesNotDelayOtherRetries() throws Exception {
+    LocalRetry     retry    = new LocalRetry(1, 1, 10, TimeUnit.MILLISECONDS);
+    CountDownLatch released = new CountDownLatch(1);
+    AtomicInteger  blocked  = new AtomicInteger();
+    publish();
+    publish();
+    retry.execute(channel, embedded.receive(QUEUE), () -> {
+      if (blocked.incrementAndGet() > 1) {
+        // 重试时阻塞，直到另一条消息的重试完成
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+        return;
+      }
+      throw new IllegalStateException("fail");
+    }, () -> {
+      throw new AssertionError("fallback");
+    });
+    AtomicInteger attempts = new AtomicInteger();
+    retry.execute(channel, embedded.receive(QUEUE), () -> {
+      if (attempts.incrementAndGet() == 1) {
+        throw new IllegalStateException("fail");
+      }
+      released.countDown();
+    }, () -> {
+      throw new AssertionError("fallback");
+    });
+    awaitSettled();
+    assertEquals(0, released.getCount());
+    assertEquals(0, broker.getMessageCount(QUEUE));
+  }
+
+  private void awaitSettled() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (embedded.getUnackedCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(0, embedded.getUnackedCount());
+  }
+
+  private void publish() {
+    broker.publish("", QUEUE, new Message(new byte[0], new MessageProperties()));
+  }
+}
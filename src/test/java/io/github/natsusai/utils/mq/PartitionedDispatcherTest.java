@@ -0,0 +1,109 @@
+package io.github.natsusai.utils.mq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.Channel;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-05 10:15
+ */
+
+public class PartitionedDispatcherTest {
+
+  private static final String QUEUE = "work";
+  private static final String DLQ   = "work.dlq";
+
+  private EmbeddedBroker        broker;
+  private EmbeddedChannel       embedded;
+  private Channel               channel;
+  private PartitionedDispatcher dispatcher;
+
+  @Before
+  public void setUp() {
+    broker = new EmbeddedBroker();
+    broker.declareExchange("dlx");
+    broker.declareQueue(DLQ);
+    broker.bind(DLQ, "dlx", QUEUE);
+    broker.declareQueue(QUEUE, -1, "dlx", null);
+    embedded   = broker.createChannel();
+    channel    = embedded.getChannel();
+    dispatcher = new PartitionedDispatcher(2, PartitionedDispatcher.header("key"), true, 3, 1,
+        TimeUnit.MILLISECONDS, (c, m) -> RabbitMqUtils.reject(c, m, false));
+  }
+
+  @After
+  public void tearDown() {
+    dispatcher.close();
+  }
+
+  @Test
+  public void failedMessageIsRetriedInLaneBeforeLaterMessagesOfSameKey() throws Exception {
+    publish("a", "1");
+    publish("a", "2");
+    List<String>  processed = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger failures  = new AtomicInteger();
+    dispatchAll((c, m) -> {
+      String id = m.getMessageProperties().getMessageId();
+      if (id.equals("1") && failures.incrementAndGet() < 3) {
+        throw new IllegalStateException("fail " + id);
+      }
+      processed.add(id);
+    });
+    assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("1", "2"), processed);
+    assertEquals(0, embedded.getUnackedCount());
+    assertEquals(0, broker.getMessageCount(QUEUE));
+  }
+
+  @Test
+  public void poisonMessageGoesToFailureHandlerInsteadOfRequeue() throws Exception {
+    publish("a", "poison");
+    publish("a", "2");
+    List<String>  processed = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger attempts  = new AtomicInteger();
+    dispatchAll((c, m) -> {
+      String id = m.getMessageProperties().getMessageId();
+      if (id.equals("poison")) {
+        attempts.incrementAndGet();
+        throw new IllegalStateException("poison");
+      }
+      processed.add(id);
+    });
+    assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+    assertEquals(3, attempts.get());
+    assertEquals(Collections.singletonList("2"), processed);
+    assertEquals(0, embedded.getUnackedCount());
+    assertEquals(0, broker.getMessageCount(QUEUE));
+    assertEquals(1, broker.getMessageCount(DLQ));
+    assertTrue(channel.isOpen());
+  }
+
+  private void dispatchAll(PartitionedDispatcher.Handler handler) {
+    Message message;
+    while ((message = embedded.receive(QUEUE)) != null) {
+      dispatcher.dispatch(channel, message, handler);
+    }
+  }
+
+  private void publish(String key, String messageId) {
+    MessageProperties properties = new MessageProperties();
+    properties.setMessageId(messageId);
+    properties.setHeader("key", key);
+    broker.publish("", QUEUE, new Message(new byte[0], properties));
+  }
+}
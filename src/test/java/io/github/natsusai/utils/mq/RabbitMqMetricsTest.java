@@ -0,0 +1,170 @@
+package io.github.natsusai.utils.mq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.Channel;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker.EmbeddedChannel;
+import io.github.natsusai.utils.mq.embedded.EmbeddedRabbitTemplate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-05 16:40
+ */
+
+public class RabbitMqMetricsTest {
+
+  private static final String EXCHANGE    = "orders";
+  private static final String ROUTING_KEY = "order.created";
+  private static final String QUEUE       = "work";
+  private static final String DLX         = "work.dlx";
+  private static final String DELAY       = "work.delay";
+  private static final String DLQ         = "work.dlq";
+
+  private EmbeddedBroker         broker;
+  private EmbeddedRabbitTemplate template;
+  private EmbeddedChannel        embedded;
+  private Channel                channel;
+  private RecordingMetrics       metrics;
+
+  @Before
+  public void setUp() {
+    broker = new EmbeddedBroker();
+    broker.declareExchange(EXCHANGE);
+    broker.declareExchange(DLX);
+    broker.declareQueue(DLQ);
+    broker.declareQueue(QUEUE, -1, DLX, DLQ);
+    broker.bind(QUEUE, EXCHANGE, ROUTING_KEY);
+    // 延迟队列过期后保留路由键值回到原交换机
+    broker.declareQueue(DELAY, 0, EXCHANGE, null);
+    broker.bind(DELAY, DLX, ROUTING_KEY);
+    broker.bind(DLQ, DLX, DLQ);
+    template = new EmbeddedRabbitTemplate(broker);
+    embedded = broker.createChannel();
+    channel  = embedded.getChannel();
+    metrics  = new RecordingMetrics();
+    RabbitMqUtils.setMetrics(metrics);
+  }
+
+  @After
+  public void tearDown() {
+    RabbitMqUtils.setMetrics(null);
+  }
+
+  @Test
+  public void retryRecordsXDeathRepublishGiveUpAndAck() throws Exception {
+    publish();
+    Message message;
+    while ((message = embedded.receive(QUEUE)) != null) {
+      RabbitMqUtils.retryOrExec(template, channel, message, DLX, ROUTING_KEY, 1, true, () -> {});
+    }
+    assertEquals(Arrays.asList(
+        "xDeath work order.created 0", "republish work order.created true", "ack work order.created",
+        "xDeath work order.created 1", "giveUp work order.created", "ack work order.created"),
+        metrics.events);
+  }
+
+  @Test
+  public void simpleRetryRecordsRequeueGiveUpAndAck() throws Exception {
+    publish();
+    RabbitMqUtils.simpleRetry(channel, embedded.receive(QUEUE));
+    RabbitMqUtils.simpleRetry(channel, embedded.receive(QUEUE));
+    assertEquals(Arrays.asList(
+        "reject work order.created true", "giveUp work order.created", "ack work order.created"),
+        metrics.events);
+    assertEquals(0, embedded.getUnackedCount());
+  }
+
+  @Test
+  public void rejectWithoutRequeueIsRecorded() throws Exception {
+    publish();
+    RabbitMqUtils.reject(channel, embedded.receive(QUEUE), false);
+    assertEquals(Collections.singletonList("reject work order.created false"), metrics.events);
+    assertEquals(1, broker.getMessageCount(DLQ));
+  }
+
+  @Test
+  public void confirmedRepublishRecordsConfirmResult() throws Exception {
+    ConfirmedRepublisher republisher = new ConfirmedRepublisher(template);
+    publish();
+    RabbitMqUtils.confirmRetry(republisher, channel, embedded.receive(QUEUE), DLX, ROUTING_KEY);
+    Message message = embedded.receive(QUEUE);
+    // 无法路由的重新发布被退回，原消息重新入队
+    RabbitMqUtils.confirmRetry(republisher, channel, message, DLX, "unbound");
+    assertEquals(Arrays.asList(
+        "xDeath work order.created 0", "republish work order.created true", "ack work order.created",
+        "xDeath work order.created 1", "republish work order.created false", "reject work order.created true"),
+        metrics.events);
+    assertEquals(0, embedded.getUnackedCount());
+    assertEquals(1, broker.getMessageCount(QUEUE));
+    assertTrue(metrics.nanos.stream().allMatch(nanos -> nanos >= 0));
+  }
+
+  @Test
+  public void accumulatedAcksAndRejectsAreRecorded() throws Exception {
+    publish();
+    publish();
+    AckAccumulator accumulator = AckAccumulator.register(channel, 8, 1, TimeUnit.HOURS);
+    try {
+      RabbitMqUtils.simpleRetry(channel, embedded.receive(QUEUE));
+      RabbitMqUtils.retry(template, channel, embedded.receive(QUEUE), DLX, ROUTING_KEY);
+      accumulator.flush();
+    } finally {
+      accumulator.close();
+    }
+    assertEquals(Arrays.asList(
+        "reject work order.created true",
+        "xDeath work order.created 0", "republish work order.created true", "ack work order.created"),
+        metrics.events);
+    assertEquals(0, embedded.getUnackedCount());
+    assertNull(AckAccumulator.get(channel));
+  }
+
+  private void publish() {
+    broker.publish(EXCHANGE, ROUTING_KEY, new Message(new byte[0], new MessageProperties()));
+  }
+
+  private static final class RecordingMetrics implements RabbitMqMetrics {
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long>   nanos  = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void onAck(String queue, String routingKey) {
+      events.add("ack " + queue + " " + routingKey);
+    }
+
+    @Override
+    public void onReject(String queue, String routingKey, boolean requeue) {
+      events.add("reject " + queue + " " + routingKey + " " + requeue);
+    }
+
+    @Override
+    public void onRepublish(String queue, String routingKey, long nanos, boolean success) {
+      events.add("republish " + queue + " " + routingKey + " " + success);
+      this.nanos.add(nanos);
+    }
+
+    @Override
+    public void onGiveUp(String queue, String routingKey) {
+      events.add("giveUp " + queue + " " + routingKey);
+    }
+
+    @Override
+    public void onXDeath(String queue, String routingKey, long count) {
+      events.add("xDeath " + queue + " " + routingKey + " " + count);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package io.github.natsusai.utils.mq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.rabbitmq.client.Channel;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker.EmbeddedChannel;
+import io.github.natsusai.utils.mq.embedded.EmbeddedRabbitTemplate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * @author Kurenai
+ * @since 2020-11-04 10:30
+ */
+
+public class RabbitMqUtilsTest {
+
+  private static final String QUEUE = "work";
+  private static final String DLX   = "work.dlx";
+  private static final String DELAY = "work.delay";
+
+  private EmbeddedBroker         broker;
+  private EmbeddedRabbitTemplate template;
+  private EmbeddedChannel        embedded;
+  private Channel                channel;
+
+  @Before
+  public void setUp() {
+    broker = new EmbeddedBroker();
+    broker.declareQueue(QUEUE);
+    broker.declareExchange(DLX);
+    broker.declareQueue(DELAY, 0, "", QUEUE);
+    broker.bind(DELAY, DLX, QUEUE);
+    template = new EmbeddedRabbitTemplate(broker);
+    embedded = broker.createChannel();
+    channel  = embedded.getChannel();
+  }
+
+  @Test
+  public void retryRepublishesUntilRetryTimesThenGivesUp() throws Exception {
+    publish("1");
+    AtomicInteger gaveUp     = new AtomicInteger();
+    int           deliveries = 0;
+    Message       message;
+    while ((message = embedded.receive(QUEUE)) != null) {
+      assertEquals(deliveries, RabbitMqUtils.getXDeathCount(message));
+      RabbitMqUtils.retryOrExec(template, channel, message, DLX, QUEUE, gaveUp::incrementAndGet);
+      deliveries++;
+    }
+    assertEquals(4, deliveries);
+    assertEquals(1, gaveUp.get());
+    assertEquals(0, embedded.getUnackedCount());
+    assertTrue(channel.isOpen());
+  }
+
+  @Test
+  public void retryHonoursRetryTimes() throws Exception {
+    publish("1");
+    int     deliveries = 0;
+    Message message;
+    while ((message = embedded.receive(QUEUE)) != null) {
+      RabbitMqUtils.retry(template, channel, message, DLX, QUEUE, 1, true);
+      deliveries++;
+    }
+    assertEquals(2, deliveries);
+    assertEquals(0, embedded.getUnackedCount());
+  }
+
+  @Test
+  public void simpleRetryRequeuesOnceThenGivesUp() throws Exception {
+    publish("1");
+    AtomicInteger gaveUp = new AtomicInteger();
+
+    Message first = embedded.receive(QUEUE);
+    assertFalse(RabbitMqUtils.getReDeliveryTag(first));
+    RabbitMqUtils.simpleRetryOrExec(channel, first, gaveUp::incrementAndGet);
+    assertEquals(0, gaveUp.get());
+
+    Message second = embedded.receive(QUEUE);
+    assertNotNull(second);
+    assertTrue(RabbitMqUtils.getReDeliveryTag(second));
+    RabbitMqUtils.simpleRetryOrExec(channel, second, gaveUp::incrementAndGet);
+    assertEquals(1, gaveUp.get());
+
+    assertNull(embedded.receive(QUEUE));
+    assertEquals(0, embedded.getUnackedCount());
+    assertTrue(channel.isOpen());
+  }
+
+  @Test
+  public void tieredRetryDelaysByAttemptThenGivesUp() throws Exception {
+    TieredRetryPolicy policy = declareTiers(new TieredRetryPolicy(QUEUE, 2, 1, 10, TimeUnit.SECONDS, 2.0, 0));
+    publish("1");
+    AtomicInteger gaveUp = new AtomicInteger();
+    for (int attempt = 0; attempt < 2; attempt++) {
+      Message message = embedded.receive(QUEUE);
+      assertEquals(attempt, policy.getAttempts(message));
+      RabbitMqUtils.retryOrExec(template, channel, message, policy, true, gaveUp::incrementAndGet);
+      // 延迟未到时不会回到原队列
+      broker.advance(policy.getDelay(attempt) / 2);
+      assertNull(embedded.receive(QUEUE));
+      broker.advance(policy.getDelay(attempt));
+    }
+    Message message = embedded.receive(QUEUE);
+    assertEquals(2, policy.getAttempts(message));
+    RabbitMqUtils.retryOrExec(template, channel, message, policy, true, gaveUp::incrementAndGet);
+    assertEquals(1, gaveUp.get());
+    assertNull(embedded.receive(QUEUE));
+    assertEquals(0, embedded.getUnackedCount());
+  }
+
+  @Test
+  public void tieredRetryIgnoresUpstreamDeadLetters() throws Exception {
+    TieredRetryPolicy policy = declareTiers(new TieredRetryPolicy(QUEUE, 1, 1, 10, TimeUnit.SECONDS, 2.0, 0));
+    // 消息先在上游队列过期，经死信进入原队列，带有其它队列的 x-death 记录
+    broker.declareQueue("upstream", 0, "", QUEUE);
+    MessageProperties properties = new MessageProperties();
+    properties.setMessageId("1");
+    broker.publish("", "upstream", new Message(new byte[0], properties));
+    broker.advance(1);
+    Message message = embedded.receive(QUEUE);
+    assertEquals(1, RabbitMqUtils.getXDeathTotalCount(message));
+    assertEquals(0, policy.getAttempts(message));
+    AtomicInteger gaveUp = new AtomicInteger();
+    RabbitMqUtils.retryOrExec(template, channel, message, policy, true, gaveUp::incrementAndGet);
+    assertEquals(0, gaveUp.get());
+    assertEquals(1, broker.getMessageCount(policy.getRoutingKey(0)));
+    broker.advance(policy.getDelay(0));
+    message = embedded.receive(QUEUE);
+    assertEquals(1, policy.getAttempts(message));
+    RabbitMqUtils.retryOrExec(template, channel, message, policy, true, gaveUp::incrementAndGet);
+    assertEquals(1, gaveUp.get());
+    assertEquals(0, embedded.getUnackedCount());
+  }
+
+  private TieredRetryPolicy declareTiers(TieredRetryPolicy policy) {
+    broker.declareExchange(policy.getExchange());
+    for (int attempt = 0; attempt < policy.getTiers(); attempt++) {
+      String routingKey = policy.getRoutingKey(attempt);
+      broker.declareQueue(routingKey, policy.getDelay(attempt), "", QUEUE);
+      broker.bind(routingKey, policy.getExchange(), routingKey);
+    }
+    return policy;
+  }
+
+  private void publish(String messageId) {
+    MessageProperties properties = new MessageProperties();
+    properties.setMessageId(messageId);
+    broker.publish("", QUEUE, new Message(new byte[0], properties));
+  }
+}
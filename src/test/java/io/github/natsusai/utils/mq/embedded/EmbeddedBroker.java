@@ -0,0 +1,440 @@
+package io.github.natsusai.utils.mq.embedded;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * 内存中的 RabbitMQ 替身
+ * <p/>
+ * 模拟队列、直连交换机与默认交换机、deliveryTag、redelivered 标记、队列及消息 TTL、
+ * 死信交换机路由以及 x-death 消息头，无需连接真实的 broker。
+ * 与 RabbitMQ 一致，过期只在队首检查；时间可通过 {@link #advance(long)} 推进，无需真实等待。
+ * <p/>
+ * {@link Channel} 只实现了ack/reject/nack、关闭及 ShutdownListener 相关方法，其它方法抛出
+ * {@link UnsupportedOperationException}；ack未知的 deliveryTag 会像 RabbitMQ 一样关闭 Channel。
+ *
+ * @author Kurenai
+ * @since 2020-10-29 13:50
+ */
+
+public class EmbeddedBroker {
+
+  private final Map<String, Queue>                    queues    = new HashMap<>();
+  private final Map<String, Map<String, List<Queue>>> exchanges = new HashMap<>();
+
+  private int  channelNumber;
+  private long clockOffset;
+
+  /**
+   * 声明直连交换机
+   *
+   * @param exchange 交换机名称
+   */
+  public synchronized void declareExchange(String exchange) {
+    exchanges.computeIfAbsent(exchange, e -> new HashMap<>());
+  }
+
+  /**
+   * 声明队列
+   *
+   * @param queue 队列名称
+   */
+  public void declareQueue(String queue) {
+    declareQueue(queue, -1, null, null);
+  }
+
+  /**
+   * 声明队列
+   *
+   * @param queue                队列名称
+   * @param ttl                  消息TTL（毫秒），为负数则不过期
+   * @param deadLetterExchange   死信交换机，为null则丢弃死信
+   * @param deadLetterRoutingKey 死信路由键值，为null则使用原路由键值
+   */
+  public synchronized void declareQueue(String queue, long ttl, String deadLetterExchange,
+      String deadLetterRoutingKey) {
+    queues.computeIfAbsent(queue, q -> new Queue(q, ttl, deadLetterExchange, deadLetterRoutingKey));
+  }
+
+  /**
+   * 将队列绑定到交换机
+   *
+   * @param queue      队列名称
+   * @param exchange   交换机名称
+   * @param routingKey 路由键值
+   */
+  public synchronized void bind(String queue, String exchange, String routingKey) {
+    exchanges.computeIfAbsent(exchange, e -> new HashMap<>())
+        .computeIfAbsent(routingKey, k -> new ArrayList<>())
+        .add(getQueue(queue));
+  }
+
+  /**
+   * 发布消息，消息会被复制后放入队列
+   *
+   * @param exchange   交换机名称，空字符串为默认交换机
+   * @param routingKey 路由键值
+   * @param message    Message
+   * @return 是否路由到了至少一个队列
+   */
+  public synchronized boolean publish(String exchange, String routingKey, Message message) {
+    return route(exchange, routingKey, copy(message.getMessageProperties()), message.getBody());
+  }
+
+  /**
+   * 创建 Channel
+   *
+   * @return EmbeddedChannel
+   */
+  public synchronized EmbeddedChannel createChannel() {
+    return new EmbeddedChannel(++channelNumber);
+  }
+
+  /**
+   * 获取队列中待投递的消息数量
+   *
+   * @param queue 队列名称
+   * @return 消息数量
+   */
+  public synchronized int getMessageCount(String queue) {
+    expire();
+    return getQueue(queue).ready.size();
+  }
+
+  /**
+   * 推进时钟
+   *
+   * @param millis 毫秒数
+   */
+  public synchronized void advance(long millis) {
+    clockOffset += millis;
+    expire();
+  }
+
+  private long now() {
+    return System.currentTimeMillis() + clockOffset;
+  }
+
+  private Queue getQueue(String queue) {
+    Queue q = queues.get(queue);
+    if (q == null) {
+      throw new IllegalArgumentException("NOT_FOUND - no queue '" + queue + "'");
+    }
+    return q;
+  }
+
+  private boolean route(String exchange, String routingKey, MessageProperties properties, byte[] body) {
+    List<Queue> targets;
+    if (exchange.isEmpty()) {
+      Queue q = queues.get(routingKey);
+      targets = q == null ? Collections.emptyList() : Collections.singletonList(q);
+    } else {
+      Map<String, List<Queue>> bindings = exchanges.get(exchange);
+      if (bindings == null) {
+        throw new IllegalArgumentException("NOT_FOUND - no exchange '" + exchange + "'");
+      }
+      targets = bindings.getOrDefault(routingKey, Collections.emptyList());
+    }
+    boolean first = true;
+    for (Queue q : targets) {
+      MessageProperties p = first ? properties : copy(properties);
+      first = false;
+      q.enqueue(new Delivery(p, body, exchange, routingKey), now());
+    }
+    return !targets.isEmpty();
+  }
+
+  private void expire() {
+    long now = now();
+    for (Queue q : queues.values()) {
+      Delivery head;
+      while ((head = q.ready.peekFirst()) != null && head.expireAt <= now) {
+        q.ready.pollFirst();
+        deadLetter(q, head, "expired");
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void deadLetter(Queue q, Delivery delivery, String reason) {
+    if (q.deadLetterExchange == null) {
+      return;
+    }
+    MessageProperties    properties = delivery.properties;
+    List<Map<String, ?>> xDeath     = (List<Map<String, ?>>) properties.getHeaders().get("x-death");
+    xDeath = xDeath == null ? new ArrayList<>() : new ArrayList<>(xDeath);
+    Map<String, Object> entry = null;
+    for (int i = 0; i < xDeath.size(); i++) {
+      Map<String, ?> d = xDeath.get(i);
+      if (q.name.equals(d.get("queue")) && reason.equals(d.get("reason"))) {
+        entry = new LinkedHashMap<>(d);
+        xDeath.remove(i);
+        break;
+      }
+    }
+    if (entry == null) {
+      entry = new LinkedHashMap<>();
+      entry.put("count", 0L);
+      entry.put("reason", reason);
+      entry.put("queue", q.name);
+      entry.put("exchange", delivery.exchange);
+      entry.put("routing-keys", Collections.singletonList(delivery.routingKey));
+    }
+    entry.put("count", (Long) entry.get("count") + 1);
+    entry.put("time", now());
+    xDeath.add(0, entry);
+    properties.getHeaders().put("x-death", xDeath);
+    properties.setExpiration(null);
+    properties.setRedelivered(false);
+    String routingKey = q.deadLetterRoutingKey == null ? delivery.routingKey : q.deadLetterRoutingKey;
+    route(q.deadLetterExchange, routingKey, properties, delivery.body);
+  }
+
+  private static MessageProperties copy(MessageProperties source) {
+    MessageProperties target = new MessageProperties();
+    target.setMessageId(source.getMessageId());
+    target.setCorrelationId(source.getCorrelationId());
+    target.setContentType(source.getContentType());
+    target.setContentEncoding(source.getContentEncoding());
+    target.setPriority(source.getPriority());
+    target.setExpiration(source.getExpiration());
+    target.getHeaders().putAll(source.getHeaders());
+    return target;
+  }
+
+  private static final class Delivery {
+
+    private final MessageProperties properties;
+    private final byte[]            body;
+    private final String            exchange;
+    private final String            routingKey;
+    private long                    expireAt = Long.MAX_VALUE;
+
+    private Delivery(MessageProperties properties, byte[] body, String exchange, String routingKey) {
+      this.properties = properties;
+      this.body       = body;
+      this.exchange   = exchange;
+      this.routingKey = routingKey;
+    }
+  }
+
+  private static final class Queue {
+
+    private final String               name;
+    private final long                 ttl;
+    private final String               deadLetterExchange;
+    private final String               deadLetterRoutingKey;
+    private final ArrayDeque<Delivery> ready = new ArrayDeque<>();
+
+    private Queue(String name, long ttl, String deadLetterExchange, String deadLetterRoutingKey) {
+      this.name                 = name;
+      this.ttl                  = ttl;
+      this.deadLetterExchange   = deadLetterExchange;
+      this.deadLetterRoutingKey = deadLetterRoutingKey;
+    }
+
+    private void enqueue(Delivery delivery, long now) {
+      long   ttl        = this.ttl;
+      String expiration = delivery.properties.getExpiration();
+      if (expiration != null) {
+        long messageTtl = Long.parseLong(expiration);
+        ttl = ttl < 0 ? messageTtl : Math.min(ttl, messageTtl);
+      }
+      if (ttl >= 0) {
+        delivery.expireAt = now + ttl;
+      }
+      ready.addLast(delivery);
+    }
+  }
+
+  /**
+   * 内存中的 Channel
+   */
+  public final class EmbeddedChannel implements InvocationHandler {
+
+    private final int                         number;
+    private final Channel                     channel;
+    private final NavigableMap<Long, Unacked> unacked   = new TreeMap<>();
+    private final List<ShutdownListener>      listeners = new CopyOnWriteArrayList<>();
+    private long                              deliveryTag;
+    private volatile boolean                  open      = true;
+
+    private EmbeddedChannel(int number) {
+      this.number  = number;
+      this.channel = (Channel) Proxy.newProxyInstance(
+          Channel.class.getClassLoader(), new Class<?>[]{Channel.class}, this);
+    }
+
+    /**
+     * 获取 Channel 代理对象
+     *
+     * @return Channel
+     */
+    public Channel getChannel() {
+      return channel;
+    }
+
+    /**
+     * 从队列中取出一条消息，未ack前记为该 Channel 的未确认消息
+     *
+     * @param queue 队列名称
+     * @return Message，队列为空则返回null
+     */
+    public Message receive(String queue) {
+      synchronized (EmbeddedBroker.this) {
+        checkOpen();
+        expire();
+        Queue    q        = getQueue(queue);
+        Delivery delivery = q.ready.pollFirst();
+        if (delivery == null) {
+          return null;
+        }
+        long              tag        = ++deliveryTag;
+        MessageProperties properties = delivery.properties;
+        properties.setDeliveryTag(tag);
+        properties.setConsumerQueue(queue);
+        properties.setReceivedExchange(delivery.exchange);
+        properties.setReceivedRoutingKey(delivery.routingKey);
+        if (properties.getRedelivered() == null) {
+          properties.setRedelivered(false);
+        }
+        unacked.put(tag, new Unacked(q, delivery));
+        return new Message(delivery.body, properties);
+      }
+    }
+
+    /**
+     * 获取未确认的消息数量
+     *
+     * @return 未确认的消息数量
+     */
+    public int getUnackedCount() {
+      synchronized (EmbeddedBroker.this) {
+        return unacked.size();
+      }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "basicAck":
+          settle((Long) args[0], (Boolean) args[1], null);
+          return null;
+        case "basicReject":
+          settle((Long) args[0], false, (Boolean) args[1]);
+          return null;
+        case "basicNack":
+          settle((Long) args[0], (Boolean) args[1], (Boolean) args[2]);
+          return null;
+        case "isOpen":
+          return open;
+        case "close":
+        case "abort":
+          shutdown(true, "OK");
+          return null;
+        case "getCloseReason":
+          return null;
+        case "getChannelNumber":
+          return number;
+        case "addShutdownListener":
+          listeners.add((ShutdownListener) args[0]);
+          return null;
+        case "removeShutdownListener":
+          listeners.remove((ShutdownListener) args[0]);
+          return null;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "EmbeddedChannel(" + number + ")";
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    }
+
+    /**
+     * @param requeue 为null表示ack
+     */
+    private void settle(long tag, boolean multiple, Boolean requeue) throws IOException {
+      synchronized (EmbeddedBroker.this) {
+        checkOpen();
+        if (!unacked.containsKey(tag)) {
+          shutdown(false, "PRECONDITION_FAILED - unknown delivery tag " + tag);
+          throw new IOException("PRECONDITION_FAILED - unknown delivery tag " + tag);
+        }
+        NavigableMap<Long, Unacked> settled = multiple
+            ? unacked.headMap(tag, true)
+            : unacked.subMap(tag, true, tag, true);
+        if (requeue != null) {
+          // 与 RabbitMQ 一致，重新入队的消息回到队首
+          for (Unacked u : settled.descendingMap().values()) {
+            if (requeue) {
+              u.delivery.properties.setRedelivered(true);
+              u.queue.ready.addFirst(u.delivery);
+            } else {
+              deadLetter(u.queue, u.delivery, "rejected");
+            }
+          }
+        }
+        settled.clear();
+      }
+    }
+
+    private void checkOpen() throws IllegalStateException {
+      if (!open) {
+        throw new IllegalStateException("channel " + number + " is already closed");
+      }
+    }
+
+    private void shutdown(boolean initiatedByApplication, String reason) {
+      List<Unacked> pending;
+      synchronized (EmbeddedBroker.this) {
+        if (!open) {
+          return;
+        }
+        open    = false;
+        pending = new ArrayList<>(unacked.descendingMap().values());
+        unacked.clear();
+        // 未确认的消息重新入队
+        for (Unacked u : pending) {
+          u.delivery.properties.setRedelivered(true);
+          u.queue.ready.addFirst(u.delivery);
+        }
+      }
+      ShutdownSignalException cause = new ShutdownSignalException(
+          false, initiatedByApplication, null, channel, reason, null);
+      for (ShutdownListener listener : listeners) {
+        listener.shutdownCompleted(cause);
+      }
+    }
+  }
+
+  private static final class Unacked {
+
+    private final Queue    queue;
+    private final Delivery delivery;
+
+    private Unacked(Queue queue, Delivery delivery) {
+      this.queue    = queue;
+      this.delivery = delivery;
+    }
+  }
+}
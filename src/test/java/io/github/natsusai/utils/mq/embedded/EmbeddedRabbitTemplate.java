@@ -0,0 +1,54 @@
+package io.github.natsusai.utils.mq.embedded;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory.ConfirmType;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.connection.CorrelationData.Confirm;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+/**
+ * 发送到 {@link EmbeddedBroker} 的 RabbitTemplate
+ * <p/>
+ * 所有 send/convertAndSend 方法都直接发布到内存中的 broker，
+ * 传入 CorrelationData 时立即完成发布确认，未路由的消息设置为退回消息。
+ * 所持有的 ConnectionFactory 只用于声明已开启发布确认与退回，不会建立连接。
+ *
+ * @author Kurenai
+ * @since 2020-10-29 13:50
+ */
+
+public class EmbeddedRabbitTemplate extends RabbitTemplate {
+
+  private final EmbeddedBroker broker;
+
+  /**
+   * @param broker EmbeddedBroker
+   */
+  public EmbeddedRabbitTemplate(EmbeddedBroker broker) {
+    super(connectionFactory());
+    this.broker = broker;
+    setMandatory(true);
+  }
+
+  private static CachingConnectionFactory connectionFactory() {
+    CachingConnectionFactory connectionFactory = new CachingConnectionFactory();
+    connectionFactory.setPublisherConfirmType(ConfirmType.CORRELATED);
+    connectionFactory.setPublisherReturns(true);
+    return connectionFactory;
+  }
+
+  @Override
+  public void send(String exchange, String routingKey, Message message, CorrelationData correlationData)
+      throws AmqpException {
+    boolean routed = broker.publish(exchange == null ? getExchange() : exchange,
+        routingKey == null ? getRoutingKey() : routingKey, message);
+    if (correlationData != null) {
+      if (!routed) {
+        correlationData.setReturnedMessage(message);
+      }
+      correlationData.getFuture().set(new Confirm(true, null));
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package io.github.natsusai.utils.mq.embedded;
+
+import com.rabbitmq.client.Channel;
+import io.github.natsusai.utils.mq.AckAccumulator;
+import io.github.natsusai.utils.mq.RabbitMqUtils;
+import io.github.natsusai.utils.mq.embedded.EmbeddedBroker.EmbeddedChannel;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.SplittableRandom;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * {@link RabbitMqUtils} 重试与ack路径的压测工具
+ * <p/>
+ * 基于 {@link EmbeddedBroker} 离线运行，按给定失败率让处理失败，统计每秒消息数、
+ * 单次投递处理耗时（处理方法加重试/ack调用）的百分位以及每条消息的内存分配。
+ * <p/>
+ * 用法：{@code RetryLoadHarness [消息数量，默认1000000] [失败率，默认0.1]}
+ *
+ * @author Kurenai
+ * @since 2020-10-29 13:50
+ */
+
+public class RetryLoadHarness {
+
+  private static final String QUEUE   = "work";
+  private static final String DLX     = "work.dlx";
+  private static final String DELAY   = "work.delay";
+  private static final int    WARM_UP = 200_000;
+
+  private final int    messages;
+  private final double failRate;
+
+  /**
+   * @param messages 消息数量
+   * @param failRate 处理失败率
+   */
+  public RetryLoadHarness(int messages, double failRate) {
+    this.messages = messages;
+    this.failRate = failRate;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int    messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    double failRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.1;
+    System.out.printf("messages=%d failRate=%.3f%n", messages, failRate);
+    for (Scenario scenario : Scenario.values()) {
+      new RetryLoadHarness(WARM_UP, failRate).run(scenario);
+      System.out.println(new RetryLoadHarness(messages, failRate).run(scenario));
+    }
+  }
+
+  /**
+   * 执行一个场景
+   *
+   * @param scenario 场景
+   * @return 统计结果
+   */
+  public Result run(Scenario scenario) throws Exception {
+    EmbeddedBroker broker = new EmbeddedBroker();
+    broker.declareQueue(QUEUE);
+    broker.declareExchange(DLX);
+    broker.declareQueue(DELAY, 0, "", QUEUE);
+    broker.bind(DELAY, DLX, QUEUE);
+    EmbeddedRabbitTemplate template = new EmbeddedRabbitTemplate(broker);
+    EmbeddedChannel        embedded = broker.createChannel();
+    Channel                channel  = embedded.getChannel();
+    if (scenario == Scenario.RETRY_BATCHED_ACK) {
+      AckAccumulator.register(channel);
+    }
+    for (int i = 0; i < messages; i++) {
+      MessageProperties properties = new MessageProperties();
+      properties.setMessageId(Integer.toString(i));
+      broker.publish("", QUEUE, new Message(new byte[16], properties));
+    }
+
+    SplittableRandom random     = new SplittableRandom(42);
+    Histogram        histogram  = new Histogram();
+    long[]           gaveUp     = new long[1];
+    long             deliveries = 0;
+    long             allocated  = allocatedBytes();
+    long             start      = System.nanoTime();
+    Message          message;
+    while ((message = embedded.receive(QUEUE)) != null) {
+      long begin = System.nanoTime();
+      if (random.nextDouble() < failRate) {
+        if (scenario == Scenario.SIMPLE_RETRY) {
+          RabbitMqUtils.simpleRetryOrExec(channel, message, () -> gaveUp[0]++);
+        } else {
+          RabbitMqUtils.retryOrExec(template, channel, message, DLX, QUEUE, () -> gaveUp[0]++);
+        }
+      } else if (scenario == Scenario.RETRY_BATCHED_ACK) {
+        AckAccumulator.get(channel).ack(RabbitMqUtils.getDeliveryTag(message));
+      } else {
+        channel.basicAck(RabbitMqUtils.getDeliveryTag(message), false);
+      }
+      histogram.record(System.nanoTime() - begin);
+      deliveries++;
+    }
+    long elapsed = System.nanoTime() - start;
+    allocated = allocatedBytes() - allocated;
+    AckAccumulator accumulator = AckAccumulator.get(channel);
+    if (accumulator != null) {
+      accumulator.close();
+    }
+    return new Result(scenario, messages, deliveries, gaveUp[0], elapsed, histogram,
+        allocated < 0 ? -1 : allocated / messages);
+  }
+
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return Long.MIN_VALUE;
+  }
+
+  /**
+   * 场景
+   */
+  public enum Scenario {
+    /**
+     * 失败时经死信交换机重试，逐条ack
+     */
+    RETRY,
+    /**
+     * 失败时经死信交换机重试，经 {@link AckAccumulator} 批量ack
+     */
+    RETRY_BATCHED_ACK,
+    /**
+     * 失败时简单重试
+     */
+    SIMPLE_RETRY
+  }
+
+  /**
+   * 统计结果
+   */
+  public static class Result {
+
+    private final Scenario  scenario;
+    private final int       messages;
+    private final long      deliveries;
+    private final long      gaveUp;
+    private final long      elapsedNanos;
+    private final Histogram histogram;
+    private final long      bytesPerMessage;
+
+    private Result(Scenario scenario, int messages, long deliveries, long gaveUp, long elapsedNanos,
+        Histogram histogram, long bytesPerMessage) {
+      this.scenario        = scenario;
+      this.messages        = messages;
+      this.deliveries      = deliveries;
+      this.gaveUp          = gaveUp;
+      this.elapsedNanos    = elapsedNanos;
+      this.histogram       = histogram;
+      this.bytesPerMessage = bytesPerMessage;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%-17s deliveries=%d gaveUp=%d msg/s=%.0f latency(ns) p50=%d p90=%d p99=%d p999=%d max=%d alloc=%dB/msg",
+          scenario, deliveries, gaveUp, messages * 1e9 / elapsedNanos,
+          histogram.percentile(0.5), histogram.percentile(0.9), histogram.percentile(0.99),
+          histogram.percentile(0.999), histogram.max, bytesPerMessage);
+    }
+  }
+
+  /**
+   * 对数分桶直方图，每个2的幂区间分为16个桶，相对误差不超过1/16
+   */
+  private static class Histogram {
+
+    private static final int SUB_BITS = 4;
+
+    private final long[] counts = new long[64 << SUB_BITS];
+    private long         total;
+    private long         max;
+
+    private void record(long value) {
+      counts[index(Math.max(0, value))]++;
+      total++;
+      max = Math.max(max, value);
+    }
+
+    private long percentile(double p) {
+      long rank = (long) Math.ceil(total * p);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && counts[i] > 0) {
+          return upperBound(i);
+        }
+      }
+      return max;
+    }
+
+    private static int index(long value) {
+      if (value < (1 << SUB_BITS)) {
+        return (int) value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+      return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) - (1 << SUB_BITS));
+    }
+
+    private static long upperBound(int index) {
+      if (index < (1 << SUB_BITS)) {
+        return index;
+      }
+      int  shift = (index >>> SUB_BITS) - 1;
+      long sub   = (index & ((1 << SUB_BITS) - 1)) + (1 << SUB_BITS);
+      return ((sub + 1) << shift) - 1;
+    }
+  }
+}